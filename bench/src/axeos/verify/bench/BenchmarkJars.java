@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertPath;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import jdk.security.jarsigner.JarSigner;
+
+/**
+ * Creates signed jars used by the benchmarks, signed with the keys from
+ * <code>test/certs/all.jks</code>. The contents depend only on the
+ * parameters, so the same jar is created every time.
+ */
+public class BenchmarkJars {
+
+	private static final char[] PASSWORD = "123456".toCharArray();
+
+	/**
+	 * Directory with the test certificates, <code>verify.bench.certs</code>
+	 * system property or <code>../test/certs</code>.
+	 */
+	public static File certsDir() {
+		return new File(System.getProperty("verify.bench.certs", "../test/certs"));
+	}
+
+	/**
+	 * Creates unsigned jar.
+	 *
+	 * @param entries
+	 *            number of entries
+	 * @param entrySize
+	 *            size of each entry
+	 * @param compressed
+	 *            deflate the entries, otherwise they are stored
+	 */
+	public static void create(File jar, int entries, int entrySize, boolean compressed, long seed)
+			throws IOException {
+		Random random = new Random(seed);
+		byte[] data = new byte[entrySize];
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar), 65536),
+				manifest);
+		try {
+			for (int i = 0; i < entries; i++) {
+				fill(random, data);
+				JarEntry entry = new JarEntry("pkg" + (i / 1000) + "/entry" + i + ".bin");
+				// constant time, the jar must not depend on when it is made
+				entry.setTime(1370044800000L);
+				if (!compressed) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(data.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(data);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Fills the array with pseudo random text, compressing to about a half.
+	 */
+	private static void fill(Random random, byte[] data) {
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + random.nextInt(16));
+		}
+	}
+
+	/**
+	 * Creates jar (unless it exists already) signed by the first
+	 * <code>signers</code> of <code>sign1</code> and <code>sign2</code>.
+	 *
+	 * @param tsa
+	 *            URL of the time stamping authority or <code>null</code>
+	 */
+	public static File signed(File dir, int entries, int entrySize, boolean compressed, int signers, String tsa)
+			throws IOException, GeneralSecurityException {
+		String name = "jar-" + entries + "-" + entrySize + "-" + (compressed ? "deflated" : "stored") + "-"
+				+ signers + (tsa != null ? "-tsa" : "");
+		File jar = new File(dir, name + ".jar");
+		if (jar.exists())
+			return jar;
+
+		dir.mkdirs();
+		File unsigned = new File(dir, name + ".unsigned");
+		create(unsigned, entries, entrySize, compressed, 42);
+		String[] aliases = { "sign1", "sign2" };
+		for (int i = 0; i < signers; i++) {
+			File next = new File(dir, name + "." + i);
+			sign(unsigned, next, aliases[i], tsa);
+			unsigned.delete();
+			unsigned = next;
+		}
+		if (!unsigned.renameTo(jar))
+			throw new IOException("Can't create " + jar);
+		return jar;
+	}
+
+	/**
+	 * Signs jar with a key from <code>all.jks</code>.
+	 */
+	public static void sign(File in, File out, String alias, String tsa) throws IOException,
+			GeneralSecurityException {
+		KeyStore keystore = KeyStore.getInstance("JKS");
+		InputStream ksIn = new FileInputStream(new File(certsDir(), "all.jks"));
+		try {
+			keystore.load(ksIn, PASSWORD);
+		} finally {
+			ksIn.close();
+		}
+		PrivateKey key = (PrivateKey) keystore.getKey(alias, PASSWORD);
+		CertPath path = CertificateFactory.getInstance("X.509").generateCertPath(
+				Arrays.asList(keystore.getCertificateChain(alias)));
+
+		JarSigner.Builder builder = new JarSigner.Builder(key, path).digestAlgorithm("SHA-256").signerName(
+				alias.toUpperCase(Locale.ENGLISH));
+		if (tsa != null)
+			builder.tsa(URI.create(tsa));
+
+		ZipFile zipFile = new ZipFile(in);
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 65536);
+			try {
+				builder.build().sign(zipFile, os);
+			} finally {
+				os.close();
+			}
+		} finally {
+			zipFile.close();
+		}
+	}
+
+}
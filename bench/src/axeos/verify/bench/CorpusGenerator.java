@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify.bench;
+
+import java.io.File;
+
+/**
+ * Generates the corpus of large signed jars used by {@link PerformanceGate}.
+ * <p>
+ * Usage: <code>CorpusGenerator &lt;dir&gt; &lt;spec&gt;...</code>, where each
+ * spec is <code>&lt;entries&gt;x&lt;entry size&gt;[:stored|:deflated][:&lt;signers&gt;]</code>
+ * , e.g. <code>100000x1024:deflated:2</code>. Jars already present are not
+ * generated again. When the <code>verify.bench.tsa</code> system property is
+ * set, the signatures are timestamped by that TSA.
+ * </p>
+ */
+public class CorpusGenerator {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: CorpusGenerator <dir> <entries>x<size>[:stored|:deflated][:<signers>]...");
+			System.exit(255);
+		}
+		File dir = new File(args[0]);
+		String tsa = System.getProperty("verify.bench.tsa");
+		for (int i = 1; i < args.length; i++) {
+			String[] parts = args[i].split(":");
+			String[] size = parts[0].split("x");
+			boolean compressed = parts.length < 2 || !"stored".equals(parts[1]);
+			int signers = parts.length < 3 ? 1 : Integer.parseInt(parts[2]);
+
+			long start = System.currentTimeMillis();
+			File jar = BenchmarkJars.signed(dir, Integer.parseInt(size[0]), Integer.parseInt(size[1]), compressed,
+					signers, tsa);
+			System.out.println(jar + ": " + (jar.length() >> 20) + " MB, "
+					+ (System.currentTimeMillis() - start) / 1000 + " s");
+		}
+	}
+
+}
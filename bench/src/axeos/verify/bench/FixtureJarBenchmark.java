@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import axeos.verify.JarSignatureValidator;
+import axeos.verify.TrustContext;
+
+/**
+ * Time of verifying the small test jars, with and without timestamps. It is
+ * dominated by the per jar costs: signature block and certificate path
+ * checks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.security.properties=bench.security")
+@State(Scope.Benchmark)
+public class FixtureJarBenchmark {
+
+	@Param({ "sign1.jar", "sign1_tsa1.jar", "sign1_tsa2.jar" })
+	public String jar;
+
+	private File jarFile;
+
+	@Param({ "false", "true" })
+	public boolean skipTrustCheck;
+
+	private TrustContext trust;
+
+	private JarSignatureValidator validator;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		jarFile = new File(new File(BenchmarkJars.certsDir().getParentFile(), "jars"), jar);
+		validator = VerifyJarBenchmark.validator(skipTrustCheck);
+		trust = validator.getTrustContext();
+		verify();
+	}
+
+	@Benchmark
+	public void verify() throws Exception {
+		JarFile jf = new JarFile(jarFile);
+		try {
+			validator.verifyJar(jf, trust, VerifyJarBenchmark.NULL_STREAM);
+		} finally {
+			jf.close();
+		}
+	}
+
+}
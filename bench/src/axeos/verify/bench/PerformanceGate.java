@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.jar.JarFile;
+
+import axeos.verify.JarSignatureValidator;
+import axeos.verify.TrustContext;
+
+/**
+ * Verifies every jar of the corpus and fails when the throughput or the peak
+ * heap usage is worse than the stored baseline.
+ * <p>
+ * Usage: <code>PerformanceGate &lt;corpus dir&gt; &lt;baseline file&gt; [-update]</code>
+ * . With <code>-update</code> the measured values are stored as the new
+ * baseline. The allowed regression is set by the
+ * <code>verify.perf.tolerance</code> system property (default 0.2, i.e. 20%)
+ * and the number of measured runs of each jar by <code>verify.perf.runs</code>
+ * (default 3, the best one counts).
+ * </p>
+ */
+public class PerformanceGate {
+
+	private static final String ENTRIES_PER_S = ".entries_per_s";
+
+	private static final String MB_PER_S = ".mb_per_s";
+
+	private static final String PEAK_HEAP_MB = ".peak_heap_mb";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: PerformanceGate <corpus dir> <baseline file> [-update]");
+			System.exit(255);
+		}
+		File baselineFile = new File(args[1]);
+		boolean update = args.length > 2 && "-update".equals(args[2]);
+		double tolerance = Double.parseDouble(System.getProperty("verify.perf.tolerance", "0.2"));
+		int runs = Integer.parseInt(System.getProperty("verify.perf.runs", "3"));
+
+		File[] jars = new File(args[0]).listFiles();
+		if (jars == null || jars.length == 0) {
+			System.err.println("No jars in " + args[0]);
+			System.exit(255);
+		}
+		Arrays.sort(jars);
+
+		Properties baseline = new Properties();
+		if (!update) {
+			if (!baselineFile.exists()) {
+				System.err.println("No baseline " + baselineFile + ", record it with -update");
+				System.exit(255);
+			}
+			load(baseline, baselineFile);
+		}
+
+		JarSignatureValidator validator = VerifyJarBenchmark.validator(false);
+		TrustContext trust = validator.getTrustContext();
+
+		Properties measured = new Properties();
+		boolean failed = false;
+		for (File jar : jars) {
+			if (!jar.getName().endsWith(".jar"))
+				continue;
+			String name = jar.getName();
+
+			// warm up
+			int entries = verify(validator, trust, jar);
+
+			long best = Long.MAX_VALUE;
+			long peakHeap = 0;
+			for (int i = 0; i < runs; i++) {
+				System.gc();
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					pool.resetPeakUsage();
+				}
+				long start = System.nanoTime();
+				verify(validator, trust, jar);
+				best = Math.min(best, System.nanoTime() - start);
+				long heap = 0;
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					if (pool.getType() == MemoryType.HEAP)
+						heap += pool.getPeakUsage().getUsed();
+				}
+				peakHeap = Math.max(peakHeap, heap);
+			}
+
+			double seconds = best / 1e9;
+			double mbPerS = jar.length() / 1048576.0 / seconds;
+			double entriesPerS = entries / seconds;
+			double heapMB = peakHeap / 1048576.0;
+			measured.setProperty(name + MB_PER_S, format(mbPerS));
+			measured.setProperty(name + ENTRIES_PER_S, format(entriesPerS));
+			measured.setProperty(name + PEAK_HEAP_MB, format(heapMB));
+			System.out.println(name + ": " + format(mbPerS) + " MB/s, " + format(entriesPerS) + " entries/s, peak heap "
+					+ format(heapMB) + " MB");
+
+			if (!update) {
+				failed |= regressed(baseline, name + MB_PER_S, mbPerS, -tolerance);
+				failed |= regressed(baseline, name + ENTRIES_PER_S, entriesPerS, -tolerance);
+				failed |= regressed(baseline, name + PEAK_HEAP_MB, heapMB, tolerance);
+			}
+		}
+
+		if (update) {
+			OutputStream out = new FileOutputStream(baselineFile);
+			try {
+				measured.store(out, "verify_jar performance baseline, " + Runtime.getRuntime().availableProcessors()
+						+ " CPUs, Java " + System.getProperty("java.version"));
+			} finally {
+				out.close();
+			}
+			System.out.println("Baseline stored in " + baselineFile);
+		} else if (failed) {
+			System.err.println("Performance regressed");
+			System.exit(1);
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+
+	private static void load(Properties properties, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param tolerance
+	 *            allowed relative change, negative when the value must not
+	 *            decrease
+	 */
+	private static boolean regressed(Properties baseline, String key, double value, double tolerance) {
+		String stored = baseline.getProperty(key);
+		if (stored == null) {
+			System.out.println("  no baseline for " + key);
+			return false;
+		}
+		double limit = Double.parseDouble(stored) * (1 + tolerance);
+		if (tolerance < 0 ? value < limit : value > limit) {
+			System.err.println("  " + key + ": " + format(value) + ", baseline " + stored);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	private static int verify(JarSignatureValidator validator, TrustContext trust, File jar) throws Exception {
+		JarFile jarFile = new JarFile(jar);
+		try {
+			validator.verifyJar(jarFile, trust, VerifyJarBenchmark.NULL_STREAM);
+			return jarFile.size();
+		} finally {
+			jarFile.close();
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import axeos.verify.JarSignatureValidator;
+import axeos.verify.TrustContext;
+
+/**
+ * Time of {@link JarSignatureValidator#verifyJar(JarFile)} on generated jars.
+ * Run with <code>-prof gc</code> (the default of <code>ant bench</code>) to
+ * see the allocation rate. Timestamped jars are generated only when the
+ * <code>verify.bench.tsa</code> system property holds a TSA URL, see
+ * {@link FixtureJarBenchmark} for the timestamped test jars.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.security.properties=bench.security")
+@State(Scope.Benchmark)
+public class VerifyJarBenchmark {
+
+	static final PrintStream NULL_STREAM = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+	});
+
+	/**
+	 * Creates validator used by the benchmarks, at a date the test
+	 * certificates are valid.
+	 */
+	static JarSignatureValidator validator(boolean skipTrustCheck) throws Exception {
+		JarSignatureValidator validator = new JarSignatureValidator();
+		validator.setTrustedKeystore(new File(BenchmarkJars.certsDir(), "all.jks").getPath());
+		validator.setVerificationDate(new SimpleDateFormat("yyyy-MM-dd").parse("2013-06-01"));
+		validator.setSkipTrustCheck(skipTrustCheck);
+		return validator;
+	}
+
+	@Param({ "true", "false" })
+	public boolean compressed;
+
+	@Param({ "100", "2000" })
+	public int entries;
+
+	@Param({ "1024", "65536" })
+	public int entrySize;
+
+	private File jar;
+
+	@Param({ "1", "2" })
+	public int signers;
+
+	@Param({ "false", "true" })
+	public boolean skipTrustCheck;
+
+	private TrustContext trust;
+
+	private JarSignatureValidator validator;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		jar = BenchmarkJars.signed(new File("target/jars"), entries, entrySize, compressed, signers,
+				System.getProperty("verify.bench.tsa"));
+		validator = validator(skipTrustCheck);
+		trust = validator.getTrustContext();
+		// fails the benchmark if the jar is not valid
+		verify();
+	}
+
+	@Benchmark
+	public void verify() throws Exception {
+		JarFile jarFile = new JarFile(jar);
+		try {
+			validator.verifyJar(jarFile, trust, NULL_STREAM);
+		} finally {
+			jarFile.close();
+		}
+	}
+
+}
@@ -0,0 +1,825 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CRLReason;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertPathValidatorException.BasicReason;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.PKIXRevocationChecker;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Revocation lists indexed for checking with little memory. Each CRL is
+ * parsed once into sorted arrays of the revoked serial numbers and dates,
+ * held in a single buffer instead of an object per entry. Files are parsed
+ * again only when their modification time or size changes; the parsed files
+ * are shared by all the stores of the JVM.
+ * <p>
+ * With an index directory the buffers are stored there and memory mapped,
+ * so the following runs do not parse the unchanged CRLs at all. The CRL
+ * signature is checked, reading the CRL file again, the first time a CRL is
+ * used with an issuer key.
+ * </p>
+ * <p>
+ * Only complete CRLs of the certificate issuers are supported. A CRL with a
+ * critical extension, or a partitioned (issuing distribution point) or delta
+ * CRL, fails {@link #load()} with {@link UnsupportedCrlException}, so such
+ * CRLs are not taken for the complete list of the issuer; indirect CRLs have
+ * critical certificate issuer entry extensions. Other extensions are
+ * ignored.
+ * </p>
+ */
+public class CrlStore {
+
+	/**
+	 * Checks certificates against the CRLs of their issuers. Certificates are
+	 * checked from the trust anchor to the target, so the issuer of each one
+	 * is known.
+	 */
+	private static final class Checker extends PKIXRevocationChecker {
+
+		private final Set<TrustAnchor> anchors;
+
+		private final List<Crl> crls;
+
+		private final long date;
+
+		private X509Certificate previous;
+
+		Checker(List<Crl> crls, Set<TrustAnchor> anchors, Date date) {
+			this.crls = crls;
+			this.anchors = anchors;
+			this.date = date != null ? date.getTime() : System.currentTimeMillis();
+		}
+
+		@Override
+		public void check(Certificate c, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+			X509Certificate cert = (X509Certificate) c;
+			PublicKey issuerKey = null;
+			if (previous != null) {
+				issuerKey = previous.getPublicKey();
+				boolean[] usage = previous.getKeyUsage();
+				// cRLSign
+				if (usage != null && usage.length > 6 && !usage[6])
+					issuerKey = null;
+			} else {
+				for (TrustAnchor anchor : anchors) {
+					X509Certificate trusted = anchor.getTrustedCert();
+					if (trusted != null && trusted.getSubjectX500Principal().equals(cert.getIssuerX500Principal()))
+						issuerKey = trusted.getPublicKey();
+					else if (trusted == null && anchor.getCA().equals(cert.getIssuerX500Principal()))
+						issuerKey = anchor.getCAPublicKey();
+				}
+			}
+			previous = cert;
+
+			boolean found = false;
+			for (Crl crl : crls) {
+				if (!crl.issuer.equals(cert.getIssuerX500Principal()) || crl.thisUpdate > date + CLOCK_SKEW
+						|| (crl.nextUpdate >= 0 && crl.nextUpdate < date - CLOCK_SKEW) || issuerKey == null)
+					continue;
+				try {
+					crl.verify(issuerKey);
+				} catch (Exception e) {
+					log.log(Level.FINE, "CRL of " + crl.issuer + " can't be used", e);
+					continue;
+				}
+				found = true;
+				Date revoked = crl.revocationDate(cert.getSerialNumber());
+				if (revoked != null && revoked.getTime() < date) {
+					CertificateRevokedException e = new CertificateRevokedException(revoked, CRLReason.UNSPECIFIED,
+							crl.issuer, Collections.<String, java.security.cert.Extension> emptyMap());
+					throw new CertPathValidatorException(e.getMessage(), e, null, -1, BasicReason.REVOKED);
+				}
+			}
+			if (!found)
+				throw new CertPathValidatorException("Could not determine revocation status", null, null, -1,
+						BasicReason.UNDETERMINED_REVOCATION_STATUS);
+		}
+
+		@Override
+		public List<CertPathValidatorException> getSoftFailExceptions() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Set<String> getSupportedExtensions() {
+			return null;
+		}
+
+		@Override
+		public void init(boolean forward) throws CertPathValidatorException {
+			if (forward)
+				throw new CertPathValidatorException("Forward checking not supported");
+			previous = null;
+		}
+
+		@Override
+		public boolean isForwardCheckingSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Indexed CRL. The buffer holds sorted 64-bit keys (low bits of the
+	 * serial numbers), revocation dates, offsets of the complete serial
+	 * numbers and the serial numbers themselves.
+	 */
+	static final class Crl {
+
+		private final ByteBuffer buffer;
+
+		private final int count;
+
+		private final int datesOffset;
+
+		private final File file;
+
+		private final int index;
+
+		final X500Principal issuer;
+
+		private final int keysOffset;
+
+		final long nextUpdate;
+
+		private final int offsetsOffset;
+
+		private final int serialsOffset;
+
+		private final byte[] signature;
+
+		private final String signatureAlgorithm;
+
+		private final int tbsLength;
+
+		private final int tbsOffset;
+
+		final long thisUpdate;
+
+		private volatile PublicKey verifiedKey;
+
+		/**
+		 * @param buffer
+		 *            section of the index, see {@link CrlStore#write}
+		 */
+		Crl(File file, int index, ByteBuffer buffer) {
+			this.file = file;
+			this.index = index;
+			this.buffer = buffer;
+			int pos = 0;
+			thisUpdate = buffer.getLong(pos);
+			nextUpdate = buffer.getLong(pos + 8);
+			tbsOffset = buffer.getInt(pos + 16);
+			tbsLength = buffer.getInt(pos + 20);
+			pos += 24;
+			byte[] issuerBytes = bytes(buffer, pos);
+			pos += 4 + issuerBytes.length;
+			issuer = new X500Principal(issuerBytes);
+			byte[] alg = bytes(buffer, pos);
+			pos += 4 + alg.length;
+			signatureAlgorithm = new String(alg, UTF8);
+			signature = bytes(buffer, pos);
+			pos += 4 + signature.length;
+			count = buffer.getInt(pos);
+			keysOffset = pos + 4;
+			datesOffset = keysOffset + 8 * count;
+			offsetsOffset = datesOffset + 8 * count;
+			serialsOffset = offsetsOffset + 4 * count;
+		}
+
+		/**
+		 * @return revocation date of the certificate with the serial number,
+		 *         or <code>null</code> if it is not revoked
+		 */
+		Date revocationDate(BigInteger serial) {
+			long key = serial.longValue();
+			byte[] bytes = serial.toByteArray();
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (buffer.getLong(keysOffset + 8 * mid) < key)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			for (int i = low; i < count && buffer.getLong(keysOffset + 8 * i) == key; i++) {
+				int offset = serialsOffset + buffer.getInt(offsetsOffset + 4 * i);
+				if (serialEquals(offset, bytes))
+					return new Date(buffer.getLong(datesOffset + 8 * i));
+			}
+			return null;
+		}
+
+		private boolean serialEquals(int offset, byte[] bytes) {
+			if ((buffer.get(offset) & 0xff) != bytes.length)
+				return false;
+			for (int i = 0; i < bytes.length; i++) {
+				if (buffer.get(offset + 1 + i) != bytes[i])
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Checks the CRL signature, once for each issuer key.
+		 */
+		void verify(PublicKey key) throws GeneralSecurityException, IOException {
+			if (key.equals(verifiedKey))
+				return;
+			byte[] der = decode(readFile(file)).get(index);
+			Signature sig = Signature.getInstance(signatureAlgorithm);
+			sig.initVerify(key);
+			sig.update(der, tbsOffset, tbsLength);
+			if (!sig.verify(signature))
+				throw new GeneralSecurityException("Invalid CRL signature");
+			verifiedKey = key;
+		}
+	}
+
+	/**
+	 * Parsed file with its state when it was parsed.
+	 */
+	private static final class CrlFile {
+
+		final List<Crl> crls;
+
+		final byte[] digest;
+
+		final long lastModified;
+
+		final long length;
+
+		CrlFile(long lastModified, long length, byte[] digest, List<Crl> crls) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.digest = digest;
+			this.crls = crls;
+		}
+	}
+
+	/**
+	 * Minimal DER reader, positions are offsets in the whole array.
+	 */
+	private static final class Der {
+
+		final byte[] data;
+
+		final int end;
+
+		int pos;
+
+		/**
+		 * Start of the last element returned by {@link #next()}.
+		 */
+		int start;
+
+		Der(byte[] data, int pos, int end) {
+			this.data = data;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		boolean hasMore() {
+			return pos < end;
+		}
+
+		/**
+		 * @return contents of the next element
+		 */
+		Der next() throws IOException {
+			start = pos;
+			int p = pos + 1;
+			if (p >= end)
+				throw new IOException("Truncated CRL");
+			int length = data[p++] & 0xff;
+			if (length > 0x7f) {
+				int bytes = length & 0x7f;
+				if (bytes > 4 || p + bytes > end)
+					throw new IOException("Bad length in CRL");
+				length = 0;
+				for (int i = 0; i < bytes; i++) {
+					length = (length << 8) | (data[p++] & 0xff);
+				}
+			}
+			if (length < 0 || p + length > end)
+				throw new IOException("Truncated CRL");
+			pos = p + length;
+			return new Der(data, p, p + length);
+		}
+
+		int tag() {
+			return data[pos] & 0xff;
+		}
+	}
+
+	/**
+	 * Thrown for a CRL the store can't check certificates against, which the
+	 * JDK revocation checker may.
+	 */
+	public static class UnsupportedCrlException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedCrlException(String message) {
+			super(message);
+		}
+	}
+
+	private static final long CLOCK_SKEW = 15 * 60 * 1000;
+
+	private static final String DELTA_CRL_INDICATOR = "2.5.29.27";
+
+	private static final String ISSUING_DISTRIBUTION_POINT = "2.5.29.28";
+
+	private static final ConcurrentMap<String, CrlFile> LOADED = new ConcurrentHashMap<String, CrlFile>();
+
+	private static final int MAGIC = 0x564a434c;
+
+	private static final String SUFFIX = ".crlidx";
+
+	private static final java.nio.charset.Charset UTF8 = java.nio.charset.Charset.forName("UTF-8");
+
+	private static final int VERSION = 2;
+
+	private static final Logger log = Logger.getLogger(CrlStore.class.getName());
+
+	private static byte[] bytes(ByteBuffer buffer, int pos) {
+		byte[] bytes = new byte[buffer.getInt(pos)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(pos + 4 + i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param date
+	 *            validation date, <code>null</code> for the current time
+	 */
+	static PKIXRevocationChecker checker(List<Crl> crls, Set<TrustAnchor> anchors, Date date) {
+		return new Checker(crls, anchors, date);
+	}
+
+	/**
+	 * Throws for a critical extension of the sequence and the unsupported
+	 * ones.
+	 */
+	private static void checkExtensions(Der extensions, String... unsupported) throws IOException {
+		while (extensions.hasMore()) {
+			Der extension = extensions.next();
+			String id = oid(extension.next());
+			boolean critical = false;
+			if (extension.tag() == 0x01) {
+				Der value = extension.next();
+				critical = value.pos < value.end && value.data[value.pos] != 0;
+			}
+			if (critical || java.util.Arrays.asList(unsupported).contains(id))
+				throw new UnsupportedCrlException("Unsupported CRL extension " + id + (critical ? " (critical)" : ""));
+		}
+	}
+
+	/**
+	 * @return DER encoded CRLs of the file, which is DER or PEM encoded
+	 */
+	static List<byte[]> decode(byte[] data) throws IOException {
+		String begin = "-----BEGIN X509 CRL-----";
+		String end = "-----END X509 CRL-----";
+		if (data.length > 0 && data[0] == 0x30)
+			return Collections.singletonList(data);
+		String text = new String(data, "US-ASCII");
+		List<byte[]> crls = new ArrayList<byte[]>();
+		int i = text.indexOf(begin);
+		while (i >= 0) {
+			int j = text.indexOf(end, i);
+			if (j < 0)
+				throw new IOException("Unterminated PEM CRL");
+			crls.add(Base64.getMimeDecoder().decode(text.substring(i + begin.length(), j)));
+			i = text.indexOf(begin, j);
+		}
+		if (crls.isEmpty())
+			throw new IOException("No CRL found");
+		return crls;
+	}
+
+	private static int digit(byte[] data, int pos) {
+		return data[pos] - '0';
+	}
+
+	private static String oid(Der oid) {
+		StringBuilder sb = new StringBuilder();
+		long value = 0;
+		for (int i = oid.pos; i < oid.end; i++) {
+			value = (value << 7) | (oid.data[i] & 0x7f);
+			if ((oid.data[i] & 0x80) == 0) {
+				if (sb.length() == 0)
+					sb.append(Math.min(value / 40, 2)).append('.').append(value - Math.min(value / 40, 2) * 40);
+				else
+					sb.append('.').append(value);
+				value = 0;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Parses UTCTime or GeneralizedTime in the Z form, without the slow date
+	 * formats, as a CRL may contain a million of them.
+	 */
+	private static long time(Der time) throws IOException {
+		byte[] d = time.data;
+		int p = time.pos;
+		int year;
+		if (time.end - p >= 15) {
+			year = digit(d, p) * 1000 + digit(d, p + 1) * 100 + digit(d, p + 2) * 10 + digit(d, p + 3);
+			p += 4;
+		} else if (time.end - p >= 13) {
+			year = digit(d, p) * 10 + digit(d, p + 1);
+			year += year < 50 ? 2000 : 1900;
+			p += 2;
+		} else {
+			throw new IOException("Bad time in CRL");
+		}
+		int month = digit(d, p) * 10 + digit(d, p + 1);
+		int day = digit(d, p + 2) * 10 + digit(d, p + 3);
+		int hour = digit(d, p + 4) * 10 + digit(d, p + 5);
+		int minute = digit(d, p + 6) * 10 + digit(d, p + 7);
+		int second = digit(d, p + 8) * 10 + digit(d, p + 9);
+		// days from the civil date, proleptic Gregorian calendar
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097L + doe - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+
+	private final List<String> fileNames;
+
+	private final File indexDirectory;
+
+	private final List<CrlFile> loaded = new ArrayList<CrlFile>();
+
+	/**
+	 * @param indexDirectory
+	 *            directory the parsed CRLs are stored in, or <code>null</code>
+	 */
+	public CrlStore(List<String> fileNames, File indexDirectory) {
+		this.fileNames = new ArrayList<String>(fileNames);
+		this.indexDirectory = indexDirectory;
+		if (indexDirectory != null)
+			indexDirectory.mkdirs();
+	}
+
+	/**
+	 * @return CRLs loaded by {@link #load()}
+	 */
+	synchronized List<Crl> getCrls() {
+		List<Crl> crls = new ArrayList<Crl>();
+		for (CrlFile f : loaded) {
+			crls.addAll(f.crls);
+		}
+		return crls;
+	}
+
+	/**
+	 * @return digest of the contents of the loaded files
+	 */
+	synchronized byte[] getDigest() throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		for (CrlFile f : loaded) {
+			md.update(f.digest);
+		}
+		return md.digest();
+	}
+
+	private File indexFile(File file) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] key = md.digest(file.getCanonicalPath().getBytes(UTF8));
+			return new File(indexDirectory, TrustContext.toHex(key) + SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if any of the files changed since it was
+	 *         loaded
+	 */
+	public synchronized boolean isModified() {
+		if (loaded.size() != fileNames.size())
+			return true;
+		for (int i = 0; i < fileNames.size(); i++) {
+			File f = new File(fileNames.get(i));
+			if (f.lastModified() != loaded.get(i).lastModified || f.length() != loaded.get(i).length)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Loads the files, parsing only those changed since they were parsed the
+	 * last time.
+	 */
+	public synchronized void load() throws IOException {
+		loaded.clear();
+		for (String name : fileNames) {
+			File file = new File(name);
+			String key = file.getCanonicalPath();
+			long lastModified = file.lastModified();
+			long length = file.length();
+			CrlFile crlFile = LOADED.get(key);
+			if (crlFile == null || crlFile.lastModified != lastModified || crlFile.length != length) {
+				VerificationEvents.CrlLoad event = VerificationEvents.beginCrlLoad();
+				crlFile = open(file, lastModified, length);
+				LOADED.put(key, crlFile);
+				if (event != null && event.shouldCommit()) {
+					event.file = name;
+					event.crls = crlFile.crls.size();
+					event.commit();
+				}
+			}
+			loaded.add(crlFile);
+		}
+	}
+
+	/**
+	 * Reads the stored index of the file or parses it.
+	 */
+	private CrlFile open(File file, long lastModified, long length) throws IOException {
+		File indexFile = indexDirectory != null ? indexFile(file) : null;
+		if (indexFile != null && indexFile.exists()) {
+			try {
+				CrlFile stored = read(file, indexFile);
+				if (stored.lastModified == lastModified && stored.length == length) {
+					if (log.isLoggable(Level.FINE))
+						log.fine("Using CRL index " + indexFile);
+					return stored;
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Invalid CRL index " + indexFile, e);
+			}
+		}
+
+		if (log.isLoggable(Level.FINE))
+			log.fine("Parsing CRL file " + file);
+		byte[] data = readFile(file);
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		List<byte[]> sections = new ArrayList<byte[]>();
+		for (byte[] der : decode(data)) {
+			sections.add(parse(der));
+		}
+		ByteBuffer index = ByteBuffer.wrap(write(lastModified, length, digest, sections));
+
+		if (indexFile != null) {
+			try {
+				File tmp = File.createTempFile("crl", ".tmp", indexDirectory);
+				try {
+					FileOutputStream out = new FileOutputStream(tmp);
+					try {
+						out.write(index.array());
+					} finally {
+						out.close();
+					}
+					Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					tmp.delete();
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "CRL index can't be stored", e);
+			}
+		}
+		return read(file, index);
+	}
+
+	/**
+	 * Parses a DER encoded CRL into an index section: times, signed part
+	 * position, issuer, signature algorithm and value, and the sorted
+	 * entries.
+	 */
+	private byte[] parse(byte[] der) throws IOException {
+		Der certList = new Der(der, 0, der.length).next();
+		Der tbs = certList.next();
+		int tbsOffset = certList.start;
+		int tbsLength = tbs.end - tbsOffset;
+		if (tbs.tag() == 0x02)
+			tbs.next(); // version
+		tbs.next(); // signature
+		Der issuer = tbs.next();
+		byte[] issuerBytes = java.util.Arrays.copyOfRange(der, tbs.start, issuer.end);
+		long thisUpdate = time(tbs.next());
+		long nextUpdate = -1;
+		if (tbs.hasMore() && (tbs.tag() == 0x17 || tbs.tag() == 0x18))
+			nextUpdate = time(tbs.next());
+
+		int count = 0;
+		long[] keys = new long[1024];
+		long[] dates = new long[1024];
+		int[] offsets = new int[1024];
+		ByteArrayOutputStream serials = new ByteArrayOutputStream();
+		if (tbs.hasMore() && tbs.tag() == 0x30) {
+			Der revoked = tbs.next();
+			while (revoked.hasMore()) {
+				Der entry = revoked.next();
+				Der serial = entry.next();
+				byte[] bytes = new BigInteger(java.util.Arrays.copyOfRange(der, serial.pos, serial.end)).toByteArray();
+				if (count == keys.length) {
+					keys = java.util.Arrays.copyOf(keys, count * 2);
+					dates = java.util.Arrays.copyOf(dates, count * 2);
+					offsets = java.util.Arrays.copyOf(offsets, count * 2);
+				}
+				keys[count] = new BigInteger(bytes).longValue();
+				dates[count] = time(entry.next());
+				// e.g. the certificate issuer of an indirect CRL
+				if (entry.hasMore())
+					checkExtensions(entry.next());
+				offsets[count] = serials.size();
+				serials.write(bytes.length);
+				serials.write(bytes, 0, bytes.length);
+				count++;
+			}
+		}
+		if (tbs.hasMore() && tbs.tag() == 0xa0)
+			checkExtensions(tbs.next().next(), ISSUING_DISTRIBUTION_POINT, DELTA_CRL_INDICATOR);
+		sort(keys, dates, offsets, 0, count - 1);
+
+		Der algorithm = certList.next();
+		String oid = oid(algorithm.next());
+		Der signature = certList.next();
+		byte[] sigBytes = java.util.Arrays.copyOfRange(der, signature.pos + 1, signature.end);
+
+		byte[] alg = oid.getBytes(UTF8);
+		ByteBuffer b = ByteBuffer.allocate(24 + 4 + issuerBytes.length + 4 + alg.length + 4 + sigBytes.length + 4
+				+ count * 20 + serials.size());
+		b.putLong(thisUpdate).putLong(nextUpdate).putInt(tbsOffset).putInt(tbsLength);
+		b.putInt(issuerBytes.length).put(issuerBytes);
+		b.putInt(alg.length).put(alg);
+		b.putInt(sigBytes.length).put(sigBytes);
+		b.putInt(count);
+		for (int i = 0; i < count; i++) {
+			b.putLong(keys[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			b.putLong(dates[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			b.putInt(offsets[i]);
+		}
+		b.put(serials.toByteArray());
+		return b.array();
+	}
+
+	/**
+	 * Maps the stored index.
+	 */
+	private CrlFile read(File file, File indexFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return read(file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private CrlFile read(File file, ByteBuffer index) throws IOException {
+		try {
+			if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION)
+				throw new IOException("Not a CRL index");
+			long lastModified = index.getLong(8);
+			long length = index.getLong(16);
+			byte[] digest = new byte[32];
+			for (int i = 0; i < digest.length; i++) {
+				digest[i] = index.get(24 + i);
+			}
+			int crls = index.getInt(56);
+			List<Crl> list = new ArrayList<Crl>(crls);
+			int pos = 60;
+			for (int i = 0; i < crls; i++) {
+				int sectionLength = index.getInt(pos);
+				ByteBuffer section = index.duplicate();
+				section.position(pos + 4).limit(pos + 4 + sectionLength);
+				list.add(new Crl(file, i, section.slice()));
+				pos += 4 + sectionLength;
+			}
+			return new CrlFile(lastModified, length, digest, list);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated CRL index");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid CRL index", e);
+		}
+	}
+
+	/**
+	 * Sorts the entries by key.
+	 */
+	private void sort(long[] keys, long[] dates, int[] offsets, int low, int high) {
+		while (low < high) {
+			long pivot = keys[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (keys[i] < pivot)
+					i++;
+				while (keys[j] > pivot)
+					j--;
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					long d = dates[i];
+					dates[i] = dates[j];
+					dates[j] = d;
+					int o = offsets[i];
+					offsets[i] = offsets[j];
+					offsets[j] = o;
+					i++;
+					j--;
+				}
+			}
+			// recursion on the smaller part only
+			if (j - low < high - i) {
+				sort(keys, dates, offsets, low, j);
+				low = i;
+			} else {
+				sort(keys, dates, offsets, i, high);
+				high = j;
+			}
+		}
+	}
+
+	private byte[] write(long lastModified, long length, byte[] digest, List<byte[]> sections) {
+		int size = 60;
+		for (byte[] section : sections) {
+			size += 4 + section.length;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.putInt(MAGIC).putInt(VERSION).putLong(lastModified).putLong(length).put(digest).putInt(sections.size());
+		for (byte[] section : sections) {
+			b.putInt(section.length).put(section);
+		}
+		return b.array();
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory, and its subdirectories, for created and modified
+ * <code>*.jar</code> files. A jar is passed to the listener once its size and
+ * modification time did not change for {@link #SETTLE_MILLIS}, so files still
+ * being written are skipped, and only if its content differs from the last
+ * time it was passed. The jars found when the watching starts are passed too.
+ */
+class DirectoryWatcher {
+
+	interface Listener {
+
+		/**
+		 * Called on a worker thread, never for the same jar by two threads at
+		 * the same time.
+		 */
+		void changed(File jar);
+	}
+
+	/**
+	 * Size and modification time of a jar, and the digest of its content
+	 * once read.
+	 */
+	private static class State {
+
+		final long deadline;
+
+		final byte[] hash;
+
+		final long modified;
+
+		final long size;
+
+		State(File jar, long deadline) {
+			this(jar.length(), jar.lastModified(), deadline, null);
+		}
+
+		State(long size, long modified, long deadline, byte[] hash) {
+			this.size = size;
+			this.modified = modified;
+			this.deadline = deadline;
+			this.hash = hash;
+		}
+
+		boolean isSame(State other) {
+			return other != null && size == other.size && modified == other.modified;
+		}
+	}
+
+	/**
+	 * Time the size and modification time of a jar must not change for before
+	 * it is read.
+	 */
+	static final long SETTLE_MILLIS = 1000;
+
+	private static byte[] hash(File jar) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[65536];
+			InputStream in = new FileInputStream(jar);
+			try {
+				int n;
+				while ((n = in.read(buffer)) != -1)
+					md.update(buffer, 0, n);
+			} finally {
+				in.close();
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean isJar(File file) {
+		return file.getName().toLowerCase().endsWith(".jar");
+	}
+
+	private final File dir;
+
+	private final ExecutorService executor;
+
+	// watched directories, used by the watching thread only
+	private final Map<WatchKey, File> keys = new HashMap<WatchKey, File>();
+
+	private final Listener listener;
+
+	private final Logger log = Logger.getLogger(DirectoryWatcher.class.getName());
+
+	// jars waiting to settle, used by the watching thread only
+	private final Map<File, State> pending = new HashMap<File, State>();
+
+	private final Set<File> running = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	// jars passed to the listener
+	private final Map<File, State> verified = new ConcurrentHashMap<File, State>();
+
+	private final WatchService watchService;
+
+	/**
+	 * @param threads
+	 *            number of jars passed to the listener at the same time
+	 */
+	DirectoryWatcher(File dir, int threads, Listener listener) throws IOException {
+		this.dir = dir;
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "verify-jar-watch-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Passes the jar to the listener unless its content is the same as last
+	 * time.
+	 */
+	private void check(File jar, State settled) {
+		try {
+			State last = verified.get(jar);
+			if (settled.isSame(last)) {
+				log.fine("Unchanged " + jar);
+				return;
+			}
+			byte[] hash = hash(jar);
+			if (last != null && Arrays.equals(last.hash, hash)) {
+				log.fine("Same content of " + jar);
+			} else {
+				listener.changed(jar);
+			}
+			verified.put(jar, new State(settled.size, settled.modified, 0, hash));
+		} catch (IOException e) {
+			// removed or replaced meanwhile, an event follows
+			log.log(Level.FINE, "Can't read " + jar, e);
+		} finally {
+			running.remove(jar);
+		}
+	}
+
+	/**
+	 * Passes the settled jars to the listener.
+	 *
+	 * @return time of the next deadline or {@link Long#MAX_VALUE}
+	 */
+	private long dispatch(long now) {
+		long next = Long.MAX_VALUE;
+		Map<File, State> changed = new HashMap<File, State>();
+		for (Iterator<Map.Entry<File, State>> i = pending.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<File, State> entry = i.next();
+			final File jar = entry.getKey();
+			State state = entry.getValue();
+			if (state.deadline > now) {
+				next = Math.min(next, state.deadline);
+				continue;
+			}
+			final State current = new State(jar, now + SETTLE_MILLIS);
+			if (!current.isSame(state) || running.contains(jar)) {
+				// still written, or read by a worker
+				changed.put(jar, current);
+				next = Math.min(next, current.deadline);
+				continue;
+			}
+			i.remove();
+			if (!jar.isFile())
+				continue;
+			running.add(jar);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					check(jar, current);
+				}
+			});
+		}
+		pending.putAll(changed);
+		return next;
+	}
+
+	/**
+	 * Watches the directory and its subdirectories created later, and
+	 * schedules the jars found in them.
+	 */
+	private void register(File directory, long now) throws IOException {
+		Path path = directory.toPath();
+		keys.put(path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), directory);
+		File[] children = directory.listFiles();
+		if (children == null)
+			return;
+		for (File child : children) {
+			if (child.isDirectory()) {
+				register(child, now);
+			} else if (isJar(child)) {
+				schedule(child, now);
+			}
+		}
+	}
+
+	private void schedule(File jar, long now) {
+		pending.put(jar, new State(jar, now + SETTLE_MILLIS));
+	}
+
+	/**
+	 * Watches the directory until it is removed or the thread is interrupted,
+	 * then waits for the jars being verified.
+	 */
+	void watch() throws IOException, InterruptedException {
+		try {
+			register(dir, System.currentTimeMillis());
+			log.info("Watching " + dir);
+			long next = dispatch(System.currentTimeMillis());
+			while (!keys.isEmpty()) {
+				WatchKey key;
+				if (next == Long.MAX_VALUE)
+					key = watchService.take();
+				else
+					key = watchService.poll(Math.max(1, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				for (; key != null; key = watchService.poll()) {
+					File directory = keys.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							// events lost, unchanged jars are skipped by their size and time
+							log.fine("Events lost, scanning " + dir);
+							register(dir, now);
+							continue;
+						}
+						if (directory == null)
+							continue;
+						File child = new File(directory, event.context().toString());
+						if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+							pending.remove(child);
+							verified.remove(child);
+						} else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && child.isDirectory()) {
+							register(child, now);
+						} else if (isJar(child)) {
+							schedule(child, now);
+						}
+					}
+					if (!key.reset())
+						keys.remove(key);
+				}
+				next = dispatch(now);
+			}
+			log.info("Directory " + dir + " removed");
+		} catch (ClosedWatchServiceException e) {
+			log.log(Level.FINE, "Watching stopped", e);
+		} finally {
+			watchService.close();
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
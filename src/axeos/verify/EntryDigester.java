@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.IOException;
+import java.security.CodeSigner;
+
+/**
+ * Checks digests of all entries of a jar and finds their code signers. Entries
+ * are identified by their index in {@link java.util.jar.JarFile#entries()}.
+ */
+interface EntryDigester {
+
+	/**
+	 * Reads all the entries. Entries following the first one with invalid
+	 * signature may be skipped.
+	 */
+	void digest() throws IOException;
+
+	CodeSigner[] getCodeSigners(int index);
+
+	/**
+	 * @return index of the first entry with invalid signature or
+	 *         {@link Integer#MAX_VALUE} if there is none
+	 */
+	int getFirstInvalid();
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSigner;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks digests of the entries that differ from a previous version of the
+ * jar only. Entries with the stored and manifest digests recorded in the
+ * {@link JarDigestRecord} are not inflated and digested again.
+ * <p>
+ * The signature files are processed by the JDK as usual. Like in
+ * {@link MappedJarDigester}, the first unchanged entry of each group of
+ * entries listed in the same signature files and having the same digest
+ * algorithms is read with the {@link JarFile} and its code signers are used
+ * for the whole group, so {@link #open(JarFile, JarDigestRecord)} accepts
+ * only jars where every signature file has a matching
+ * <code>*-Digest-Manifest</code>. Changed, META-INF and directory entries
+ * are read with the {@link JarFile}.
+ * </p>
+ */
+class IncrementalEntryDigester implements EntryDigester {
+
+	private static final Logger log = Logger.getLogger(IncrementalEntryDigester.class.getName());
+
+	/**
+	 * Entry has to be read with the {@link JarFile}.
+	 */
+	private static final byte READ_JAR_FILE = 0;
+
+	/**
+	 * Entry is unchanged and listed in signature files.
+	 */
+	private static final byte UNCHANGED = 2;
+
+	/**
+	 * Entry is unchanged and not listed in any signature file.
+	 */
+	private static final byte UNSIGNED = 1;
+
+	/**
+	 * Prepares digesting of the jar.
+	 *
+	 * @return digester or <code>null</code> if the jar can't be verified
+	 *         incrementally and all its entries have to be read
+	 */
+	static IncrementalEntryDigester open(JarFile jarFile, JarDigestRecord previous) throws IOException {
+		IncrementalEntryDigester digester = new IncrementalEntryDigester(jarFile);
+		return digester.parse(previous) ? digester : null;
+	}
+
+	private static byte[] read(ZipFile zipFile, ZipEntry entry) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = zipFile.getInputStream(entry);
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private final CodeSigner[][] codeSigners;
+
+	private int firstInvalid = Integer.MAX_VALUE;
+
+	private final String[] groups;
+
+	private final JarFile jarFile;
+
+	private final String[] names;
+
+	private final byte[] states;
+
+	private IncrementalEntryDigester(JarFile jarFile) {
+		this.jarFile = jarFile;
+
+		List<String> l = new ArrayList<String>();
+		Enumeration<JarEntry> entriesEnum = jarFile.entries();
+		while (entriesEnum.hasMoreElements()) {
+			l.add(entriesEnum.nextElement().getName());
+		}
+		this.names = l.toArray(new String[l.size()]);
+		this.codeSigners = new CodeSigner[names.length][];
+		this.groups = new String[names.length];
+		this.states = new byte[names.length];
+	}
+
+	@Override
+	public void digest() throws IOException {
+		Map<String, CodeSigner[]> groupSigners = new HashMap<String, CodeSigner[]>();
+		byte[] buffer = new byte[8192];
+		int read = 0;
+		for (int index = 0; index < names.length; index++) {
+			if (states[index] == UNSIGNED)
+				continue;
+			if (states[index] == UNCHANGED && groupSigners.containsKey(groups[index])) {
+				codeSigners[index] = groupSigners.get(groups[index]);
+				continue;
+			}
+
+			JarEntry entry = jarFile.getJarEntry(names[index]);
+			InputStream is = null;
+			try {
+				is = jarFile.getInputStream(entry);
+				while ((is.read(buffer, 0, buffer.length)) != -1)
+					;
+			} catch (java.lang.SecurityException e) {
+				if (log.isLoggable(Level.FINEST))
+					log.log(Level.FINEST, "  Invalid signature of " + names[index], e);
+				firstInvalid = index;
+				return;
+			} finally {
+				if (is != null) {
+					is.close();
+				}
+			}
+			read++;
+			codeSigners[index] = entry.getCodeSigners();
+			if (states[index] == UNCHANGED)
+				groupSigners.put(groups[index], codeSigners[index]);
+		}
+		if (log.isLoggable(Level.FINE))
+			log.fine(read + " of " + names.length + " entries read, " + groupSigners.size()
+					+ " groups of unchanged entries");
+	}
+
+	@Override
+	public CodeSigner[] getCodeSigners(int index) {
+		return codeSigners[index];
+	}
+
+	@Override
+	public int getFirstInvalid() {
+		return firstInvalid;
+	}
+
+	/**
+	 * Compares the entries with the previous version and parses the signature
+	 * files.
+	 *
+	 * @return <code>false</code> if the jar is not supported
+	 */
+	private boolean parse(JarDigestRecord previous) throws IOException {
+		Set<String> normalized = new HashSet<String>();
+		for (String name : names) {
+			if (!normalized.add(MappedJarDigester.normalize(name))) {
+				log.fine("Duplicate entry " + name);
+				return false;
+			}
+		}
+
+		ManifestIndex manifest;
+		// indices of the signature files listing each manifest section
+		String[] signatureFiles;
+		// few distinct values shared by all entries
+		Map<String, String> interned = new HashMap<String, String>();
+		// raw content, the JarFile would verify the signatures on reading
+		ZipFile zipFile = new ZipFile(jarFile.getName());
+		try {
+			ZipEntry manifestEntry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+			if (manifestEntry == null) {
+				log.fine("No manifest");
+				return false;
+			}
+			byte[] rawManifest = read(zipFile, manifestEntry);
+			manifest = MappedJarDigester.index(new ByteArrayInputStream(rawManifest), JarFile.MANIFEST_NAME);
+			if (manifest == null)
+				return false;
+			signatureFiles = new String[manifest.size()];
+			int sf = 0;
+			for (String name : names) {
+				String upper = name.toUpperCase(Locale.ENGLISH);
+				if (!upper.startsWith("META-INF/") || !upper.endsWith(".SF"))
+					continue;
+				ManifestIndex sfIndex = MappedJarDigester.index(zipFile.getInputStream(zipFile.getEntry(name)), name);
+				if (sfIndex == null)
+					return false;
+				if (!MappedJarDigester.signsWholeManifest(sfIndex.getMainAttributes(), rawManifest)) {
+					log.fine("Manifest changed after signing with " + name);
+					return false;
+				}
+				for (int i = 0; i < sfIndex.size(); i++) {
+					int section = manifest.find(MappedJarDigester.normalize(sfIndex.getName(i)));
+					if (section < 0)
+						continue;
+					String files = signatureFiles[section];
+					signatureFiles[section] = MappedJarDigester.intern(interned,
+							files == null ? Integer.toString(sf) : files + "," + sf);
+				}
+				sf++;
+			}
+		} finally {
+			zipFile.close();
+		}
+
+		Map<String, byte[]> stored = JarDigestRecord.stored(new File(jarFile.getName()));
+		int unchanged = 0;
+		for (int index = 0; index < names.length; index++) {
+			String name = names[index];
+			if (index == 0 || name.toUpperCase(Locale.ENGLISH).startsWith("META-INF/") || name.endsWith("/"))
+				continue;
+			String digests = JarDigestRecord.digests(manifest, name);
+			if (!previous.isUnchanged(name, stored.get(name), digests))
+				continue;
+			unchanged++;
+			int section = manifest.find(MappedJarDigester.normalize(name));
+			String files = section < 0 ? null : signatureFiles[section];
+			if (files == null) {
+				states[index] = UNSIGNED;
+				continue;
+			}
+			StringBuilder group = new StringBuilder(files);
+			for (String digest : digests.split("\n")) {
+				group.append(' ').append(digest.substring(0, digest.indexOf(':')));
+			}
+			states[index] = UNCHANGED;
+			groups[index] = MappedJarDigester.intern(interned, group.toString());
+		}
+		if (log.isLoggable(Level.FINE))
+			log.fine(unchanged + " of " + names.length + " entries unchanged");
+		return true;
+	}
+
+}
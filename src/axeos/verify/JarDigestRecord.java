@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Digests of the stored entries and manifest digests of the entries of a
+ * verified jar, used to verify its next version incrementally with
+ * {@link JarSignatureValidator#verifyJar(JarFile, JarDigestRecord, TrustContext, java.io.PrintStream)
+ * verifyJar}.
+ * <p>
+ * The stored digest is the SHA-256 of the central directory fields telling
+ * how the entry is stored (method, flags, CRC and sizes), its local header
+ * and its compressed data. An entry is taken as unchanged when the digest of
+ * its bytes in the new jar and its manifest digests are the same as
+ * recorded, so the record must describe a jar that was verified as valid and
+ * come from a trusted place.
+ * </p>
+ */
+public final class JarDigestRecord {
+
+	private static class Entry {
+
+		final String digests;
+
+		final byte[] stored;
+
+		Entry(byte[] stored, String digests) {
+			this.stored = stored;
+			this.digests = digests;
+		}
+	}
+
+	private static final int CEN_HEADER = 46;
+
+	private static final int CEN_SIGNATURE = 0x02014b50;
+
+	private static final int END_HEADER = 22;
+
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	private static final int LOC_HEADER = 30;
+
+	private static final int LOC_SIGNATURE = 0x04034b50;
+
+	private static final int MAGIC = 0x564a4452;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * @return <code>*-Digest</code> attributes of the manifest section of the
+	 *         entry, in a canonical form, or <code>null</code> if there are
+	 *         none
+	 */
+	static String digests(ManifestIndex manifest, String name) {
+		int section = manifest == null ? -1 : manifest.find(name);
+		if (section < 0 || manifest.getDigestCount(section) == 0)
+			return null;
+		List<String> digests = new ArrayList<String>();
+		for (int i = 0; i < manifest.getDigestCount(section); i++) {
+			digests.add(manifest.getDigestKey(section, i).toUpperCase(Locale.ENGLISH) + ": "
+					+ manifest.getDigestValue(section, i));
+		}
+		Collections.sort(digests);
+		StringBuilder builder = new StringBuilder();
+		for (String digest : digests) {
+			builder.append(digest).append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Records the jar from its stored entries and manifest, without
+	 * inflating the entries. The jar must have been verified as valid.
+	 */
+	public static JarDigestRecord of(JarFile jarFile) throws IOException {
+		ManifestIndex manifest = ManifestIndex.read(jarFile.getName());
+		// not verified incrementally anyway
+		if (manifest != null && manifest.hasDuplicates())
+			manifest = null;
+		Map<String, byte[]> stored = stored(new File(jarFile.getName()));
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		Enumeration<JarEntry> entriesEnum = jarFile.entries();
+		while (entriesEnum.hasMoreElements()) {
+			String name = entriesEnum.nextElement().getName();
+			entries.put(name, new Entry(stored.get(name), digests(manifest, name)));
+		}
+		return new JarDigestRecord(entries);
+	}
+
+	/**
+	 * Reads record written by {@link #write(File)}.
+	 */
+	public static JarDigestRecord read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a jar digest record: " + file);
+			int n = in.readInt();
+			Map<String, Entry> entries = new HashMap<String, Entry>(n * 4 / 3 + 1);
+			for (int i = 0; i < n; i++) {
+				String name = in.readUTF();
+				byte[] stored = null;
+				if (in.readBoolean()) {
+					stored = new byte[in.readUnsignedByte()];
+					in.readFully(stored);
+				}
+				String digests = in.readBoolean() ? in.readUTF() : null;
+				entries.put(name, new Entry(stored, digests));
+			}
+			return new JarDigestRecord(entries);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the stored entries of the jar, see {@link JarDigestRecord}.
+	 *
+	 * @return stored digests by entry name; entries of zip64 archives,
+	 *         duplicate entries and the ones that can't be located are
+	 *         missing
+	 */
+	static Map<String, byte[]> stored(File jar) throws IOException {
+		Map<String, byte[]> stored = new HashMap<String, byte[]>();
+		RandomAccessFile file = new RandomAccessFile(jar, "r");
+		ByteBuffer map;
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				return stored;
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			file.close();
+		}
+		int end = -1;
+		for (int pos = map.limit() - END_HEADER; pos >= Math.max(0, map.limit() - END_HEADER - 0xffff); pos--) {
+			if (map.getInt(pos) == END_SIGNATURE) {
+				end = pos;
+				break;
+			}
+		}
+		if (end < 0)
+			return stored;
+		int total = map.getShort(end + 10) & 0xffff;
+		long cenSize = map.getInt(end + 12) & 0xffffffffL;
+		long cenOffset = map.getInt(end + 16) & 0xffffffffL;
+		// data prepended to the archive, e.g. a launcher script
+		long base = end - cenSize - cenOffset;
+		if (total == 0xffff || cenOffset == 0xffffffffL || base < 0)
+			return stored;
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		Set<String> duplicates = new HashSet<String>();
+		int pos = (int) (base + cenOffset);
+		for (int n = 0; n < total; n++) {
+			if (pos > end - CEN_HEADER || map.getInt(pos) != CEN_SIGNATURE)
+				break;
+			long csize = map.getInt(pos + 20) & 0xffffffffL;
+			int nameLength = map.getShort(pos + 28) & 0xffff;
+			int extraLength = map.getShort(pos + 30) & 0xffff;
+			int commentLength = map.getShort(pos + 32) & 0xffff;
+			long local = base + (map.getInt(pos + 42) & 0xffffffffL);
+			if (pos + CEN_HEADER + nameLength > end)
+				break;
+			byte[] nameBytes = new byte[nameLength];
+			ByteBuffer field = map.duplicate();
+			field.position(pos + CEN_HEADER);
+			field.get(nameBytes);
+			String name = new String(nameBytes, "UTF-8");
+			int header = pos;
+			pos += CEN_HEADER + nameLength + extraLength + commentLength;
+			if (csize == 0xffffffffL || local > map.limit() - LOC_HEADER || map.getInt((int) local) != LOC_SIGNATURE)
+				continue;
+			long data = local + LOC_HEADER + (map.getShort((int) local + 26) & 0xffff)
+					+ (map.getShort((int) local + 28) & 0xffff);
+			if (data + csize > map.limit())
+				continue;
+
+			// version needed, flags, method, time, CRC and sizes
+			field.position(header + 6).limit(header + 28);
+			md.update(field);
+			ByteBuffer bytes = map.duplicate();
+			bytes.position((int) local).limit((int) (data + csize));
+			md.update(bytes);
+			if (stored.put(name, md.digest()) != null)
+				duplicates.add(name);
+		}
+		stored.keySet().removeAll(duplicates);
+		return stored;
+	}
+
+	private final Map<String, Entry> entries;
+
+	private JarDigestRecord(Map<String, Entry> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * @param stored
+	 *            stored digest of the entry in the new jar, see
+	 *            {@link #stored(File)}
+	 * @param digests
+	 *            current manifest digests of the entry, see
+	 *            {@link #digests(ManifestIndex, String)}
+	 * @return <code>true</code> if the entry has the recorded stored and
+	 *         manifest digests
+	 */
+	boolean isUnchanged(String name, byte[] stored, String digests) {
+		Entry recorded = entries.get(name);
+		return recorded != null && recorded.stored != null && stored != null
+				&& MessageDigest.isEqual(recorded.stored, stored) && digests != null
+				&& digests.equals(recorded.digests);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes the record to the file, replacing it atomically.
+	 */
+	public void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeBoolean(entry.stored != null);
+					if (entry.stored != null) {
+						out.writeByte(entry.stored.length);
+						out.write(entry.stored);
+					}
+					out.writeBoolean(entry.digests != null);
+					if (entry.digests != null)
+						out.writeUTF(entry.digests);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+}
@@ -19,47 +19,64 @@
  */
 package axeos.verify;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.security.CodeSigner;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
 import java.security.KeyStore.LoadStoreParameter;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.Security;
 import java.security.Timestamp;
+import java.security.cert.CRL;
 import java.security.cert.CRLException;
 import java.security.cert.CertPath;
-import java.security.cert.CertPathValidator;
 import java.security.cert.CertPathValidatorException;
-import java.security.cert.CertStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.CertificateParsingException;
-import java.security.cert.CollectionCertStoreParameters;
 import java.security.cert.PKIXCertPathValidatorResult;
 import java.security.cert.PKIXParameters;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import axeos.verify.exceptions.ExpiredException;
 import axeos.verify.exceptions.InvalidException;
+import axeos.verify.exceptions.KeystoreNotFoundException;
 import axeos.verify.exceptions.NotSignedException;
 import axeos.verify.exceptions.NotTrustedException;
 import axeos.verify.exceptions.UnsignedEntriesException;
@@ -67,15 +84,105 @@ import axeos.verify.exceptions.ValidatorException;
 
 public class JarSignatureValidator {
 
+	/**
+	 * State of a single verifyJar call. It is never shared, so one validator
+	 * may verify many jars at the same time. A {@link VerifiedJarFile} keeps
+	 * one for all its entries and synchronizes on it. The fields without
+	 * <code>private</code> are read by {@link VerificationResult}.
+	 */
+	static class Verification {
+
+		private boolean anySigned;
+
+		long bytes;
+
+		long digestNanos;
+
+		final Set<String> displayedWarings = new LinkedHashSet<String>();
+
+		int entries;
+
+		// null when nothing is written
+		private final PrintStream err;
+
+		// first failure, when all the problems are collected
+		private ValidatorException failure;
+
+		private boolean hasUnsignedEntry;
+
+		// signers whose OCSP responses were requested in advance
+		private final Set<CodeSigner> prefetched = new HashSet<CodeSigner>();
+
+		// jars stored in the jar by entry name, when they are verified too
+		private Map<String, byte[]> nestedJars;
+
+		// previous version of the jar, entries not changed since are not read
+		private JarDigestRecord previous;
+
+		// null when the verification stops on the first failure
+		List<VerificationResult.Problem> problems;
+
+		long signerNanos;
+
+		// all entries of a jar share few signers, so each one is checked only
+		// once; null value means the signer is valid
+		final Map<CodeSigner, ValidatorException> signerVerdicts = new LinkedHashMap<CodeSigner, ValidatorException>();
+
+		long triageNanos;
+
+		private final TrustContext trust;
+
+		private int unsignedEntries;
+
+		// names of the unsigned entries, when all the problems are collected
+		private List<String> unsignedNames;
+
+		Verification(TrustContext trust, PrintStream err) {
+			this.trust = trust;
+			this.err = err;
+		}
+	}
+
+	/**
+	 * Jars nested deeper are not verified, e.g. of a zip file containing
+	 * itself.
+	 */
+	static final int MAX_NESTING_DEPTH = 16;
+
+	private static ManifestIndex index(ZipFile zipFile, ZipEntry entry) throws IOException {
+		InputStream in = zipFile.getInputStream(entry);
+		try {
+			return MappedJarDigester.index(in, entry.getName());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isNestedJar(ZipEntry entry) {
+		return !entry.isDirectory() && entry.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar");
+	}
+
 	private final List<String> crlFileNames = new ArrayList<String>();
 
-	private final Set<String> displayedWarings = new HashSet<String>();
+	private File crlIndexDirectory;
+
+	private CrlStore crlStore;
 
 	private final Logger log = Logger.getLogger(JarSignatureValidator.class.getName());
 
+	private boolean mapped;
+
+	private VerificationMetrics metrics;
+
+	private int nestedParallelism = Runtime.getRuntime().availableProcessors();
+
+	private OcspResponseCache ocspCache;
+
+	private boolean ocspCacheDisabled;
+
 	private String ocspResponderURL;
 
-	private PKIXParameters params;
+	private int parallelism = 1;
 
 	private boolean quiet = false;
 
@@ -83,78 +190,197 @@ public class JarSignatureValidator {
 
 	private boolean skipTrustCheck = false;
 
+	private boolean triage;
+
+	private TrustContext trustContext;
+
+	private List<String> trustContextCrlFileNames;
+
 	private String trustedKeystore;
 
+	private File trustSnapshot;
+
 	private boolean useOCSP;
 
-	private CertPathValidator validator;
+	private VerdictCache verdictCache;
 
 	private Date verificationDate;
 
-	public List<String> getCrlFileNames() {
-		return crlFileNames;
-	}
+	private void checkEntry(JarEntry entry, CodeSigner[] codeSigners, Manifest manifest, Verification verification)
+			throws CertificateParsingException, ValidatorException {
+		String name = entry.getName();
+		boolean isSigned = (codeSigners != null);
+		verification.anySigned |= isSigned;
+		verification.entries++;
+		if (!entry.isDirectory() && !isSigned && !isSignatureRelatedFilename(name)) {
+			verification.hasUnsignedEntry = true;
+			verification.unsignedEntries++;
+			if (verification.unsignedNames != null)
+				verification.unsignedNames.add(name);
+		}
 
-	public String getOcspResponderURL() {
-		return ocspResponderURL;
-	}
+		if (log.isLoggable(Level.FINEST)) {
+			// looked up only for the log, the JDK checks the entry
+			boolean inManifest = manifest != null && MappedJarDigester.manifestAttributes(manifest, name) != null;
+			log.finest("  " + (isSigned ? "signed" : "      ") + "  " + (inManifest ? "manifest" : "        ") + "  ");
+		}
 
-	public String getTrustedKeystore() {
-		return trustedKeystore;
+		if (isSigned)
+			verifySigners(codeSigners, verification);
 	}
 
-	public Date getVerificationDate() {
-		return verificationDate;
-	}
+	private void checkSigned(Verification verification) throws ValidatorException {
+		if (verification.problems != null) {
+			if (!verification.anySigned) {
+				verification.problems.add(new VerificationResult.Problem(VerificationResult.Status.NOT_SIGNED, null,
+						null, null));
+			} else {
+				for (String name : verification.unsignedNames) {
+					verification.problems.add(new VerificationResult.Problem(
+							VerificationResult.Status.UNSIGNED_ENTRIES, name, null, null));
+				}
+			}
+			// the one verifyJar fails with
+			if (verification.failure != null)
+				throw verification.failure;
+		}
+		if (!verification.anySigned) {
+			if (log.isLoggable(Level.FINE))
+				log.fine("File is not signed");
+			throw new NotSignedException();
+		} else if (verification.hasUnsignedEntry) {
+			showErr(verification, "Contains unsigned entries");
+			if (log.isLoggable(Level.FINE))
+				log.fine("File contains unsigned entries!");
+			throw new UnsignedEntriesException();
+		}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private void initPathValdiator() throws NoSuchAlgorithmException, KeyStoreException, CertificateException,
-			FileNotFoundException, IOException, InvalidAlgorithmParameterException, CRLException, ValidatorException {
+		if (log.isLoggable(Level.FINE))
+			log.fine("File verified");
+	}
 
-		if (skipTrustCheck) {
-			log.fine("Certificate path validation skiped.");
-			this.validator = null;
-			return;
+	private void commit(VerificationEvents.EntryDigest event, String jar, String reader, Verification verification) {
+		if (event != null && event.shouldCommit()) {
+			event.jar = jar;
+			event.reader = reader;
+			event.entries = verification.entries;
+			event.bytes = verification.bytes;
+			event.commit();
 		}
+	}
 
-		Security.setProperty("ocsp.enable", useOCSP ? "true" : "false");
-		if (ocspResponderURL != null)
-			Security.setProperty("ocsp.responderURL", ocspResponderURL);
-
-		CertPathValidator validator = CertPathValidator.getInstance("PKIX");
+	private TrustContext createTrustContext() throws KeyStoreException, NoSuchAlgorithmException,
+			CertificateException, FileNotFoundException, IOException, CRLException, ValidatorException {
+		TrustAnchorSnapshot anchors = loadTrustAnchors();
 
-		KeyStore keystore = loadKeystore();
+		if (verificationDate != null) {
+			log.fine("Using verification date: " + verificationDate);
+		}
 
 		try {
-			this.params = new PKIXParameters(keystore);
+			crlStore = null;
+			if (!useOCSP && !crlFileNames.isEmpty() && crlIndexDirectory != null) {
+				// large CRLs are not parsed into objects by the JDK
+				CrlStore store = new CrlStore(crlFileNames, crlIndexDirectory);
+				try {
+					store.load();
+					crlStore = store;
+					return new TrustContext(anchors, crlStore, verificationDate);
+				} catch (CrlStore.UnsupportedCrlException e) {
+					log.log(Level.FINE, "CRLs checked by the JDK", e);
+				}
+			}
+			return new TrustContext(anchors, loadCRLs(), useOCSP, ocspResponderURL, verificationDate,
+					useOCSP ? getOcspCache() : null);
 		} catch (InvalidAlgorithmParameterException e) {
-			System.err.println("No trust anchors defined");
-			System.err.println("Signer certificate not trusted");
-			throw new NotTrustedException();
+			throw new NotTrustedException("No trust anchors defined\nSigner certificate not trusted");
 		}
+	}
 
-		if (verificationDate != null) {
-			log.fine("Using verification date: " + verificationDate);
-			this.params.setDate(verificationDate);
-		}
+	/**
+	 * Throws the failure, or when all the problems are collected, records it
+	 * and keeps the first one to be thrown once the whole jar is checked.
+	 */
+	private void fail(Verification verification, ValidatorException failure, String entry, CodeSigner signer,
+			String message) throws ValidatorException {
+		if (verification.problems == null)
+			throw failure;
+		verification.problems.add(new VerificationResult.Problem(VerificationResult.Status.of(failure), entry,
+				signer, message));
+		if (verification.failure == null)
+			verification.failure = failure;
+	}
 
-		List l = new ArrayList();
+	public List<String> getCrlFileNames() {
+		return crlFileNames;
+	}
 
-		params.setRevocationEnabled(useOCSP || crlFileNames != null && !crlFileNames.isEmpty());
+	public File getCrlIndexDirectory() {
+		return crlIndexDirectory;
+	}
 
-		if (crlFileNames != null) {
-			for (String crlFile : crlFileNames) {
-				l.addAll(CertificateFactory.getInstance("X.509").generateCRLs(new FileInputStream(crlFile)));
-			}
-		}
+	public VerificationMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getNestedParallelism() {
+		return nestedParallelism;
+	}
+
+	/**
+	 * @return the OCSP response cache, by default an in-memory one created on
+	 *         the first call
+	 */
+	public synchronized OcspResponseCache getOcspCache() {
+		if (ocspCache == null && !ocspCacheDisabled)
+			ocspCache = new OcspResponseCache();
+		return ocspCache;
+	}
+
+	public String getOcspResponderURL() {
+		return ocspResponderURL;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
 
-		CollectionCertStoreParameters csParams = new CollectionCertStoreParameters(l);
+	public String getTrustedKeystore() {
+		return trustedKeystore;
+	}
 
-		CertStore certStore = CertStore.getInstance("Collection", csParams);
+	/**
+	 * Returns trust context built from the current settings. The keystore and
+	 * CRL files are read only once, until any of the trust settings or the CRL
+	 * files change.
+	 *
+	 * @return trust context or <code>null</code> if certificate path
+	 *         validation is skipped
+	 */
+	public synchronized TrustContext getTrustContext() throws KeyStoreException, NoSuchAlgorithmException,
+			CertificateException, FileNotFoundException, IOException, CRLException, ValidatorException {
+		if (skipTrustCheck) {
+			log.fine("Certificate path validation skiped.");
+			return null;
+		}
+		if (trustContext == null || !crlFileNames.equals(trustContextCrlFileNames)
+				|| (crlStore != null && crlStore.isModified())) {
+			trustContextCrlFileNames = new ArrayList<String>(crlFileNames);
+			trustContext = createTrustContext();
+		}
+		return trustContext;
+	}
+
+	public File getTrustSnapshot() {
+		return trustSnapshot;
+	}
 
-		params.addCertStore(certStore);
+	public VerdictCache getVerdictCache() {
+		return verdictCache;
+	}
 
-		this.validator = validator;
+	public Date getVerificationDate() {
+		return verificationDate;
 	}
 
 	private boolean isCertForCodeSigning(final X509Certificate cert) throws CertificateParsingException {
@@ -164,11 +390,15 @@ public class JarSignatureValidator {
 		return extUsage != null && (extUsage.contains("2.5.29.37.0") || extUsage.contains("1.3.6.1.5.5.7.3.3"));
 	}
 
+	public boolean isMapped() {
+		return mapped;
+	}
+
 	public boolean isQuiet() {
 		return quiet;
 	}
 
-	private boolean isSignatureRelatedFilename(String filename) {
+	boolean isSignatureRelatedFilename(String filename) {
 		String tmp = filename.toUpperCase();
 		if (tmp.equals(JarFile.MANIFEST_NAME) || tmp.equals("META-INF/")
 				|| (tmp.startsWith("META-INF/SIG-") && tmp.indexOf("/") == tmp.lastIndexOf("/"))) {
@@ -189,42 +419,186 @@ public class JarSignatureValidator {
 		return skipTrustCheck;
 	}
 
+	public boolean isTriage() {
+		return triage;
+	}
+
 	public boolean isUseOCSP() {
 		return useOCSP;
 	}
 
-	private KeyStore loadKeystore() throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
-			FileNotFoundException, IOException {
-		final File tuststore = new File(System.getProperty("java.home")
-				+ "/lib/security/cacerts".replace('/', File.separatorChar));
-		final File userStore = new File("~/.keystore");
+	private List<CRL> loadCRLs() throws CertificateException, IOException, CRLException {
+		List<CRL> crls = new ArrayList<CRL>();
+		for (String crlFile : crlFileNames) {
+			log.fine("Using CRL file: " + crlFile);
+			VerificationEvents.CrlLoad event = VerificationEvents.beginCrlLoad();
+			InputStream in = new FileInputStream(crlFile);
+			Collection<? extends CRL> loaded;
+			try {
+				loaded = CertificateFactory.getInstance("X.509").generateCRLs(in);
+				crls.addAll(loaded);
+			} finally {
+				in.close();
+			}
+			if (event != null && event.shouldCommit()) {
+				event.file = crlFile;
+				event.crls = loaded.size();
+				event.commit();
+			}
+		}
+		return crls;
+	}
 
+	private KeyStore loadKeystore(File file) throws KeyStoreException, NoSuchAlgorithmException,
+			CertificateException, FileNotFoundException, IOException {
 		KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+		VerificationEvents.KeystoreLoad event = VerificationEvents.beginKeystoreLoad();
 
-		if (trustedKeystore != null) {
-			File f = new File(trustedKeystore);
-			if (!f.exists()) {
-				showErr("Keystore '" + f + "' does not exists!");
-				System.exit(4);
+		if (file != null) {
+			log.fine("Using keystore: " + file);
+			InputStream in = new FileInputStream(file);
+			try {
+				keystore.load(in, null);
+			} finally {
+				in.close();
 			}
-			log.fine("Using keystore: " + f);
-			keystore.load(new FileInputStream(f), null);
-		} else if (userStore.exists()) {
-			log.fine("Using keystore: " + userStore);
-			keystore.load(new FileInputStream(userStore), null);
-		} else if (tuststore.exists()) {
-			log.fine("Using keystore: " + tuststore);
-			keystore.load(new FileInputStream(tuststore), null);
 		} else {
 			LoadStoreParameter p = null;
 			keystore.load(p);
 		}
 
+		if (event != null && event.shouldCommit()) {
+			event.keystore = file != null ? file.getPath() : null;
+			event.entries = keystore.size();
+			event.commit();
+		}
 		return keystore;
 	}
 
-	public void setOcspResponderURL(String ocspResponderURL) {
+	/**
+	 * Loads the trust anchors from the snapshot if it was compiled from the
+	 * current keystore, otherwise from the keystore, compiling the snapshot
+	 * again.
+	 */
+	private TrustAnchorSnapshot loadTrustAnchors() throws KeyStoreException, NoSuchAlgorithmException,
+			CertificateException, FileNotFoundException, IOException, KeystoreNotFoundException {
+		File file = trustedKeystoreFile();
+		if (trustSnapshot == null || file == null)
+			return TrustAnchorSnapshot.compile(loadKeystore(file));
+
+		if (trustSnapshot.exists()) {
+			VerificationEvents.KeystoreLoad event = VerificationEvents.beginKeystoreLoad();
+			try {
+				TrustAnchorSnapshot snapshot = TrustAnchorSnapshot.read(trustSnapshot);
+				if (snapshot.isCompiledFrom(file)) {
+					log.fine("Using trust anchor snapshot: " + trustSnapshot);
+					if (event != null && event.shouldCommit()) {
+						event.keystore = trustSnapshot.getPath();
+						event.entries = snapshot.size();
+						event.commit();
+					}
+					return snapshot;
+				}
+				log.fine("Trust anchor snapshot is stale: " + trustSnapshot);
+			} catch (IOException e) {
+				log.log(Level.FINE, "Invalid trust anchor snapshot: " + trustSnapshot, e);
+			}
+		}
+		TrustAnchorSnapshot snapshot = TrustAnchorSnapshot.compile(loadKeystore(file), file);
+		try {
+			snapshot.write(trustSnapshot);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Trust anchor snapshot can't be written: " + trustSnapshot, e);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Requests the OCSP responses of the signers not checked yet, and of their
+	 * time stamping authorities, at the same time, instead of one by one when
+	 * each signer is validated.
+	 */
+	private void prefetchRevocation(Collection<CodeSigner> codeSigners, Verification verification) {
+		if (verification.trust == null || !verification.trust.isUseOCSP())
+			return;
+		List<CertPath> paths = new ArrayList<CertPath>();
+		for (CodeSigner codeSigner : codeSigners) {
+			if (verification.signerVerdicts.containsKey(codeSigner) || !verification.prefetched.add(codeSigner))
+				continue;
+			paths.add(codeSigner.getSignerCertPath());
+			if (codeSigner.getTimestamp() != null)
+				paths.add(codeSigner.getTimestamp().getSignerCertPath());
+		}
+		if (!paths.isEmpty()) {
+			long start = System.nanoTime();
+			verification.trust.prefetchOcspResponses(paths);
+			verification.signerNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void recordError(VerificationMetrics m, Exception e, Verification verification, long start) {
+		if (m != null)
+			m.jarVerified(e, verification.entries, verification.bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * Sets directory the parsed CRL files are stored in, so the following
+	 * runs map them instead of parsing the unchanged files again. The CRLs
+	 * are checked by a {@link CrlStore} then, instead of the JDK revocation
+	 * checker, unless the store does not support any of them.
+	 */
+	public synchronized void setCrlIndexDirectory(File crlIndexDirectory) {
+		this.crlIndexDirectory = crlIndexDirectory;
+		this.trustContext = null;
+	}
+
+	/**
+	 * Enables checking entry digests on the memory mapped jar file instead of
+	 * the {@link JarFile} streams. Jars the mapped reader does not support are
+	 * still read with the {@link JarFile}.
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Sets metrics the verifications are recorded to, <code>null</code>
+	 * disables recording.
+	 */
+	public void setMetrics(VerificationMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets number of nested jars verified at the same time by
+	 * {@link #verifyNestedJars}, by default the number of processors.
+	 */
+	public void setNestedParallelism(int nestedParallelism) {
+		this.nestedParallelism = Math.max(1, nestedParallelism);
+	}
+
+	/**
+	 * Sets cache of OCSP responses, by default an in-memory one.
+	 * <code>null</code> lets the JDK request the responses on every
+	 * certificate path validation.
+	 */
+	public synchronized void setOcspCache(OcspResponseCache ocspCache) {
+		this.ocspCache = ocspCache;
+		this.ocspCacheDisabled = ocspCache == null;
+		this.trustContext = null;
+	}
+
+	public synchronized void setOcspResponderURL(String ocspResponderURL) {
 		this.ocspResponderURL = ocspResponderURL;
+		this.trustContext = null;
+	}
+
+	/**
+	 * Sets number of threads used to read (and check digests of) entries of a
+	 * single jar. Values above 1 pay off only for large jars.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
 	}
 
 	public void setQuiet(boolean quiet) {
@@ -235,49 +609,227 @@ public class JarSignatureValidator {
 		this.skipCertUsage = skipCertUsage;
 	}
 
-	public void setSkipTrustCheck(boolean b) {
+	public synchronized void setSkipTrustCheck(boolean b) {
 		this.skipTrustCheck = b;
+		this.trustContext = null;
 	}
 
-	public void setTrustedKeystore(String trustedKeystore) {
+	/**
+	 * Enables the structural triage of jar files: the central directory, the
+	 * manifest and the signature files are checked first and jars which can't
+	 * be valid fail without reading the entries, see
+	 * {@link ValidatorException#isTriage()}.
+	 */
+	public void setTriage(boolean triage) {
+		this.triage = triage;
+	}
+
+	/**
+	 * Sets file the trust anchors of the keystore are compiled to. It is used
+	 * instead of the keystore, decoding only the certificates needed, until
+	 * the keystore changes.
+	 */
+	public synchronized void setTrustSnapshot(File trustSnapshot) {
+		this.trustSnapshot = trustSnapshot;
+		this.trustContext = null;
+	}
+
+	public synchronized void setTrustedKeystore(String trustedKeystore) {
 		this.trustedKeystore = trustedKeystore;
+		this.trustContext = null;
 	}
 
-	public void setUseOCSP(boolean useOCSP) {
+	public synchronized void setUseOCSP(boolean useOCSP) {
 		this.useOCSP = useOCSP;
+		this.trustContext = null;
+	}
+
+	/**
+	 * Sets cache of verification results, <code>null</code> disables caching.
+	 */
+	public void setVerdictCache(VerdictCache verdictCache) {
+		this.verdictCache = verdictCache;
 	}
 
-	public void setVerificationDate(Date verificationDate) {
+	public synchronized void setVerificationDate(Date verificationDate) {
 		this.verificationDate = verificationDate;
+		this.trustContext = null;
 	}
 
-	private void showErr(String t) {
-		if (!displayedWarings.contains(t)) {
-			displayedWarings.add(t);
-			System.err.println(t);
+	private void showErr(Verification verification, String t) {
+		if (verification.displayedWarings.add(t) && verification.err != null) {
+			verification.err.println(t);
 		}
 	}
 
-	private void validatePath(CertPath path) throws Exception {
+	/**
+	 * Checks the jar from its central directory, the manifest and the
+	 * signature files, without reading the other entries. Only the failures
+	 * the full verification can't miss are reported, an entry listed in the
+	 * manifest and a signature file is taken as signed, so a jar passing the
+	 * triage may still fail.
+	 *
+	 * @throws NotSignedException
+	 *             if no entry can be signed, e.g. there is no signature file
+	 *             with its signature block
+	 * @throws UnsignedEntriesException
+	 *             if an entry is missing from the manifest or from all the
+	 *             signature files, e.g. added after signing
+	 */
+	private void triage(JarFile jarFile, Verification verification) throws IOException, ValidatorException {
+		ZipFile zipFile = new ZipFile(jarFile.getName());
+		try {
+			ZipEntry manifestEntry = null;
+			Map<String, ZipEntry> signatureFiles = new HashMap<String, ZipEntry>();
+			Set<String> blocks = new HashSet<String>();
+			Enumeration<? extends ZipEntry> entriesEnum = zipFile.entries();
+			while (entriesEnum.hasMoreElements()) {
+				ZipEntry entry = entriesEnum.nextElement();
+				String name = entry.getName().toUpperCase(Locale.ENGLISH);
+				if (!name.startsWith("META-INF/") || name.indexOf('/') != name.lastIndexOf('/'))
+					continue;
+				// the JDK finds the manifest and pairs the signature files
+				// with their blocks ignoring the case
+				int dot = name.lastIndexOf('.');
+				String ext = name.substring(dot + 1);
+				if (name.equals(JarFile.MANIFEST_NAME)) {
+					if (manifestEntry == null)
+						manifestEntry = entry;
+				} else if (ext.equals("SF")) {
+					signatureFiles.put(name.substring(0, dot), entry);
+				} else if (ext.equals("RSA") || ext.equals("DSA") || ext.equals("EC")) {
+					blocks.add(name.substring(0, dot));
+				}
+			}
+			signatureFiles.keySet().retainAll(blocks);
+			if (manifestEntry == null || signatureFiles.isEmpty()) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Triage: no " + (manifestEntry == null ? "manifest" : "signature files with blocks"));
+				throw new NotSignedException(true);
+			}
+
+			// jars the index does not support are left to the full verification
+			ManifestIndex manifest = index(zipFile, manifestEntry);
+			if (manifest == null)
+				return;
+			List<ManifestIndex> signed = new ArrayList<ManifestIndex>();
+			for (ZipEntry entry : signatureFiles.values()) {
+				ManifestIndex signatureFile = index(zipFile, entry);
+				if (signatureFile == null)
+					return;
+				signed.add(signatureFile);
+			}
 
-		if (validator == null) {
+			boolean anySigned = false;
+			List<String> unsigned = new ArrayList<String>();
+			entriesEnum = zipFile.entries();
+			while (entriesEnum.hasMoreElements()) {
+				ZipEntry entry = entriesEnum.nextElement();
+				String name = entry.getName();
+				// the JDK looks the entries up without a leading "./" or "/"
+				String normalized = MappedJarDigester.normalize(name);
+				boolean isSigned = false;
+				if (manifest.find(normalized) >= 0) {
+					for (ManifestIndex signatureFile : signed) {
+						if (signatureFile.find(normalized) >= 0) {
+							isSigned = true;
+							break;
+						}
+					}
+				}
+				anySigned |= isSigned;
+				if (!entry.isDirectory() && !isSigned && !isSignatureRelatedFilename(name))
+					unsigned.add(name);
+			}
+			if (!anySigned) {
+				log.fine("Triage: no signed entries");
+				throw new NotSignedException(true);
+			} else if (!unsigned.isEmpty()) {
+				showErr(verification, "Contains unsigned entries");
+				if (log.isLoggable(Level.FINE))
+					log.fine("Triage: unsigned entry " + unsigned.get(0));
+				if (verification.problems != null) {
+					for (String name : unsigned) {
+						verification.problems.add(new VerificationResult.Problem(
+								VerificationResult.Status.UNSIGNED_ENTRIES, name, null, "triage"));
+					}
+				}
+				throw new UnsignedEntriesException(true);
+			}
+			log.fine("Triage passed");
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	/**
+	 * @return the keystore file to use, <code>null</code> if none exists
+	 */
+	private File trustedKeystoreFile() throws KeystoreNotFoundException {
+		final File tuststore = new File(System.getProperty("java.home")
+				+ "/lib/security/cacerts".replace('/', File.separatorChar));
+		final File userStore = new File("~/.keystore");
+
+		if (trustedKeystore != null) {
+			File f = new File(trustedKeystore);
+			if (!f.exists()) {
+				throw new KeystoreNotFoundException(f.toString());
+			}
+			return f;
+		} else if (userStore.exists()) {
+			return userStore;
+		} else if (tuststore.exists()) {
+			return tuststore;
+		}
+		return null;
+	}
+
+	private void validatePath(CertPath path, Date date, boolean timestamp, Verification verification)
+			throws Exception {
+		TrustContext trust = verification.trust;
+
+		if (trust == null) {
 			log.finest("  path validation skiped (it needs trusted keystore)");
 			return;
 		}
 
-		PKIXCertPathValidatorResult result = (PKIXCertPathValidatorResult) validator.validate(path, params);
+		PKIXParameters pathParams = trust.getParameters(path, date);
+
+		VerificationEvents.PathValidation event = VerificationEvents.beginPathValidation();
+		VerificationMetrics m = metrics;
+		long start = m != null ? System.nanoTime() : 0;
+		PKIXCertPathValidatorResult result;
+		Exception failure = null;
+		try {
+			result = trust.validate(path, pathParams);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			if (m != null)
+				m.pathValidated(pathParams.isRevocationEnabled(), System.nanoTime() - start);
+			if (event != null && event.shouldCommit()) {
+				List<? extends Certificate> certs = path.getCertificates();
+				if (!certs.isEmpty() && certs.get(0) instanceof X509Certificate)
+					event.subject = ((X509Certificate) certs.get(0)).getSubjectX500Principal().getName();
+				event.ocsp = trust.isUseOCSP();
+				event.timestamp = timestamp;
+				event.result = VerificationEvents.result(failure);
+				event.commit();
+			}
+		}
 		if (result == null)
 			throw new RuntimeException("No result???");
 
 		try {
-			if (params.getDate() == null) {
+			if (pathParams.getDate() == null) {
 				result.getTrustAnchor().getTrustedCert().checkValidity();
 			} else {
-				result.getTrustAnchor().getTrustedCert().checkValidity(params.getDate());
+				result.getTrustAnchor().getTrustedCert().checkValidity(pathParams.getDate());
 			}
 		} catch (Exception e) {
 			if (e instanceof CertificateExpiredException || e.getCause() instanceof CertificateExpiredException) {
-				showErr("Trust anchor expired");
+				showErr(verification, "Trust anchor expired");
 			}
 			throw new ExpiredException();
 		}
@@ -287,146 +839,593 @@ public class JarSignatureValidator {
 		}
 	}
 
+	private void validateSigner(final CodeSigner codeSigner, final Verification verification)
+			throws CertificateParsingException, ValidatorException {
+		Certificate cert = codeSigner.getSignerCertPath().getCertificates().get(0);
+		Date validationDate = null;
+		Timestamp timestamp = codeSigner.getTimestamp();
+		if (timestamp != null) {
+			log.finer("  Found timestamp.");
+			CertPath cp = timestamp.getSignerCertPath();
+			try {
+				log.finer("  Validating timestamp certificate path");
+				validatePath(cp, null, true, verification);
+				validationDate = timestamp.getTimestamp();
+			} catch (Exception e) {
+				if (e instanceof CertificateExpiredException || e.getCause() instanceof CertificateExpiredException) {
+					showErr(verification, "Time stamping authority certificate expired");
+				} else if ("Path does not chain with any of the trust anchors".equals(e.getMessage())) {
+					showErr(verification, "Time stamping authority certificate not trusted");
+				} else
+					showErr(verification, "Timestamp: " + e.getMessage());
+				log.log(Level.FINE, "Timestamp certificate is not valid", e);
+			}
+
+		}
+
+		CertPath path = codeSigner.getSignerCertPath();
+
+		if (cert instanceof X509Certificate) {
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("  Used certificate  SerialNumber: " + ((X509Certificate) cert).getSerialNumber()
+						+ "; Subject: " + ((X509Certificate) cert).getSubjectDN());
+			}
+			boolean correctUsage = isCertForCodeSigning((X509Certificate) cert);// TODO
+			if (!correctUsage)
+				showErr(verification, "Wrong key usage");
+
+			if (!skipCertUsage && !correctUsage) {
+				log.fine("Certificate can't be used to signing code");
+				throw new InvalidException();
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("  usage: " + (correctUsage ? "correct" : "incorrect") + ";");
+			}
+		}
+
+		try {
+			log.finest("Validating signer certificate path");
+			validatePath(path, validationDate, false, verification);
+		} catch (ValidatorException e) {
+			throw e;
+		} catch (Exception e) {
+			// e.printStackTrace();
+			if ("Path does not chain with any of the trust anchors".equals(e.getMessage())) {
+				showErr(verification, "Signer certificate not trusted");
+			}
+			// else
+			// showErr(e.getMessage());
+
+			if (e instanceof CertificateExpiredException) {
+				throw new ExpiredException();
+			} else if (e.getCause() instanceof CertificateExpiredException) {
+				throw new ExpiredException();
+			}
+
+			log.log(Level.FINE, "Certificate path can't be verified!", e);
+			throw new NotTrustedException();
+		}
+	}
+
+	/**
+	 * Verifies the jar like {@link #verifyJar(JarFile)}, but checks the whole
+	 * jar instead of stopping on the first problem, for embedding the
+	 * verification in an application. Nothing is written to stdout or stderr
+	 * and nothing is thrown: a jar that can't be read or a missing keystore
+	 * give {@link VerificationResult.Status#ERROR}. The verdict cache is not
+	 * used, as it keeps only the status.
+	 */
+	public VerificationResult verify(final File jar) {
+		long start = System.nanoTime();
+		TrustContext trust;
+		try {
+			trust = getTrustContext();
+		} catch (Exception e) {
+			long nanos = System.nanoTime() - start;
+			return new VerificationResult(jar.getPath(), e, null, nanos, nanos);
+		}
+		long trustNanos = System.nanoTime() - start;
+		try {
+			JarFile jarFile = new JarFile(jar);
+			try {
+				return verify(jarFile, trust, trustNanos, start);
+			} finally {
+				jarFile.close();
+			}
+		} catch (IOException e) {
+			return new VerificationResult(jar.getPath(), e, null, trustNanos, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Verifies the jar like {@link #verify(File)}, using given trust context
+	 * instead of the one built from this validator settings.
+	 *
+	 * @param trust
+	 *            trust context or <code>null</code> to skip certificate path
+	 *            validation
+	 */
+	public VerificationResult verify(final JarFile jarFile, final TrustContext trust) {
+		return verify(jarFile, trust, 0, System.nanoTime());
+	}
+
+	private VerificationResult verify(final JarFile jarFile, final TrustContext trust, long trustNanos, long start) {
+		VerificationEvents.JarVerification event = VerificationEvents.beginJarVerification();
+		final VerificationMetrics m = metrics;
+		final Verification verification = new Verification(trust, null);
+		verification.problems = new ArrayList<VerificationResult.Problem>();
+		verification.unsignedNames = new ArrayList<String>();
+		Exception failure = null;
+		long verificationStart = System.nanoTime();
+		try {
+			verifyJar(jarFile, verification);
+		} catch (Exception e) {
+			failure = e;
+		}
+		long nanos = System.nanoTime() - verificationStart;
+		verification.digestNanos = nanos - verification.triageNanos - verification.signerNanos;
+		if (m != null)
+			m.jarVerified(failure, verification.entries, verification.bytes, nanos);
+		if (event != null && event.shouldCommit()) {
+			event.jar = jarFile.getName();
+			event.entries = verification.entries;
+			event.unsignedEntries = verification.unsignedEntries;
+			event.bytes = verification.bytes;
+			event.result = VerificationEvents.result(failure);
+			event.commit();
+		}
+		return new VerificationResult(jarFile.getName(), failure, verification, trustNanos, System.nanoTime()
+				- start);
+	}
+
 	public void verifyJar(final JarFile jarFile) throws IOException, KeyStoreException, CertificateException,
 			NoSuchAlgorithmException, InvalidAlgorithmParameterException, CertPathValidatorException, CRLException,
 			ValidatorException {
-		displayedWarings.clear();
-		byte[] buffer = new byte[8192];
+		verifyJar(jarFile, getTrustContext(), System.err);
+	}
 
-		boolean anySigned = false;
-		boolean hasUnsignedEntry = false;
+	/**
+	 * Verifies jar writing warnings to the given stream instead of
+	 * {@link System#err}.
+	 */
+	public void verifyJar(final JarFile jarFile, final PrintStream err) throws IOException, KeyStoreException,
+			CertificateException, NoSuchAlgorithmException, CRLException, ValidatorException {
+		verifyJar(jarFile, getTrustContext(), err);
+	}
 
-		initPathValdiator();
-		// -------
+	/**
+	 * Verifies jar using given trust context instead of the one built from
+	 * this validator settings.
+	 *
+	 * @param trust
+	 *            trust context or <code>null</code> to skip certificate path
+	 *            validation
+	 */
+	public void verifyJar(final JarFile jarFile, final TrustContext trust) throws IOException,
+			CertificateException, ValidatorException {
+		verifyJar(jarFile, trust, System.err);
+	}
 
-		// -------
+	public void verifyJar(final JarFile jarFile, final TrustContext trust, final PrintStream err)
+			throws IOException, CertificateException, ValidatorException {
+		verifyJar(jarFile, null, trust, err);
+	}
 
-		final Manifest manifest = jarFile.getManifest();
+	public void verifyJar(final JarFile jarFile, final JarDigestRecord previous, final PrintStream err)
+			throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, CRLException,
+			ValidatorException {
+		verifyJar(jarFile, previous, getTrustContext(), err);
+	}
 
-		Enumeration<JarEntry> entriesEnum = jarFile.entries();
-		while (entriesEnum.hasMoreElements()) {
-			JarEntry entry = entriesEnum.nextElement();
-			InputStream is = null;
+	/**
+	 * Verifies new version of a jar, reading only the entries changed since
+	 * the previous version. The signature files are checked in full and the
+	 * result is the same as of the other <code>verifyJar</code> methods,
+	 * provided the previous version was verified as valid. Entries are taken
+	 * as unchanged by the SHA-256 of their stored bytes and their manifest
+	 * digests, see {@link JarDigestRecord}.
+	 *
+	 * @param previous
+	 *            record of the previous version verified as valid, e.g.
+	 *            {@link JarDigestRecord#of(JarFile)}, or <code>null</code> to
+	 *            read all the entries
+	 * @param trust
+	 *            trust context or <code>null</code> to skip certificate path
+	 *            validation
+	 */
+	public void verifyJar(final JarFile jarFile, final JarDigestRecord previous, final TrustContext trust,
+			final PrintStream err) throws IOException, CertificateException, ValidatorException {
+		VerificationEvents.JarVerification event = VerificationEvents.beginJarVerification();
+		final VerificationMetrics m = metrics;
+		long start = m != null ? System.nanoTime() : 0;
+		final VerdictCache cache = verdictCache;
+		String key = null;
+		// a certificate checked by OCSP may be revoked any time
+		if (cache != null && (trust == null || (trust.getFingerprint() != null && !trust.isUseOCSP()))) {
+			key = cache.key(new File(jarFile.getName()),
+					(trust == null ? "-" : trust.getFingerprint()) + " " + skipCertUsage);
+			VerdictCache.Verdict verdict = cache.get(key);
+			if (m != null) {
+				if (verdict != null)
+					m.cacheHit();
+				else
+					m.cacheMiss();
+			}
+			if (verdict != null) {
+				log.fine("Using cached verdict");
+				for (String warning : verdict.warnings) {
+					err.println(warning);
+				}
+				if (event != null && event.shouldCommit()) {
+					event.jar = jarFile.getName();
+					event.cached = true;
+					event.result = VerificationEvents.result(verdict.failure);
+					event.commit();
+				}
+				if (m != null)
+					m.jarVerified(verdict.failure, 0, 0, System.nanoTime() - start);
+				if (verdict.failure != null)
+					throw verdict.failure;
+				return;
+			}
+		}
 
-			if (log.isLoggable(Level.FINEST))
-				log.finest("Checking file " + entry);
-			try {
-				is = jarFile.getInputStream(entry);
-				// Checking SHA-1
-				while ((is.read(buffer, 0, buffer.length)) != -1)
-					;
-			} catch (java.lang.SecurityException e) {
+		final Verification verification = new Verification(trust, err);
+		verification.previous = previous;
+		ValidatorException failure = null;
+		try {
+			verifyJar(jarFile, verification);
+		} catch (ValidatorException e) {
+			failure = e;
+		} catch (Exception e) {
+			// I/O or certificate parsing error, rethrown as it is
+			recordError(m, e, verification, start);
+			throw e;
+		}
+		if (m != null)
+			m.jarVerified(failure, verification.entries, verification.bytes, System.nanoTime() - start);
+		if (event != null && event.shouldCommit()) {
+			event.jar = jarFile.getName();
+			event.entries = verification.entries;
+			event.unsignedEntries = verification.unsignedEntries;
+			event.bytes = verification.bytes;
+			event.result = VerificationEvents.result(failure);
+			event.commit();
+		}
+		// a triage failure is cheap to find again, the cache would not keep the label
+		if (key != null && (failure == null || !failure.isTriage())) {
+			// with a fixed verification date the result does not change with time
+			long expires = trust == null || trust.getVerificationDate() != null ? Long.MAX_VALUE : VerdictCache
+					.earliestExpiry(verification.signerVerdicts.keySet(), trust, System.currentTimeMillis());
+			cache.put(key, failure, verification.displayedWarings, expires);
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void verifyJar(final InputStream in) throws IOException, KeyStoreException, CertificateException,
+			NoSuchAlgorithmException, CRLException, ValidatorException {
+		verifyJar(in, getTrustContext(), System.err);
+	}
+
+	public void verifyJar(final InputStream in, final PrintStream err) throws IOException, KeyStoreException,
+			CertificateException, NoSuchAlgorithmException, CRLException, ValidatorException {
+		verifyJar(in, getTrustContext(), err);
+	}
+
+	/**
+	 * Verifies jar read from the stream in a single pass, without storing it.
+	 * Entry digests are checked while the entries are read, so memory use
+	 * does not depend on the jar size. The manifest and the signature files
+	 * must precede the other entries, as <code>jarsigner</code> writes them.
+	 * The stream is not closed.
+	 *
+	 * @param trust
+	 *            trust context or <code>null</code> to skip certificate path
+	 *            validation
+	 */
+	public void verifyJar(final InputStream in, final TrustContext trust, final PrintStream err)
+			throws IOException, CertificateException, ValidatorException {
+		verifyStream(in, new Verification(trust, err));
+	}
+
+	private void verifyJar(final InputStream in, final Verification verification) throws IOException,
+			CertificateException, ValidatorException {
+		byte[] buffer = new byte[8192];
+
+		VerificationEvents.EntryDigest event = VerificationEvents.beginEntryDigest();
+		JarInputStream jis = new JarInputStream(in, true);
+		final Manifest manifest = jis.getManifest();
+		try {
+			JarEntry entry;
+			int n;
+			while ((entry = jis.getNextJarEntry()) != null) {
 				if (log.isLoggable(Level.FINEST))
-					log.log(Level.FINEST, "  Invalid signature!!!", e);
-				throw new InvalidException();
-			} finally {
-				if (is != null) {
-					is.close();
+					log.finest("Checking file " + entry);
+				ByteArrayOutputStream nested = verification.nestedJars != null && isNestedJar(entry)
+						? new ByteArrayOutputStream() : null;
+				try {
+					while ((n = jis.read(buffer, 0, buffer.length)) != -1) {
+						verification.bytes += n;
+						if (nested != null)
+							nested.write(buffer, 0, n);
+					}
+				} catch (java.lang.SecurityException e) {
+					if (log.isLoggable(Level.FINEST))
+						log.log(Level.FINEST, "  Invalid signature!!!", e);
+					fail(verification, new InvalidException(), entry.getName(), null, e.getMessage());
+					verification.entries++;
+					continue;
 				}
+				if (nested != null)
+					verification.nestedJars.put(entry.getName(), nested.toByteArray());
+				checkEntry(entry, entry.getCodeSigners(), manifest, verification);
 			}
+		} finally {
+			commit(event, null, "stream", verification);
+		}
 
-			String name = entry.getName();
-			CodeSigner[] codeSigners = entry.getCodeSigners();
+		checkSigned(verification);
+	}
 
-			boolean isSigned = (codeSigners != null);
-			boolean inManifest = ((manifest.getAttributes(name) != null) || (manifest.getAttributes("./" + name) != null) || (manifest.getAttributes("/"
-					+ name) != null));
-			anySigned |= isSigned;
-			hasUnsignedEntry |= !entry.isDirectory() && !isSigned && !isSignatureRelatedFilename(name);
+	private void verifyJar(final JarFile jarFile, final Verification verification) throws IOException,
+			CertificateException, ValidatorException {
+		byte[] buffer = new byte[8192];
 
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("  " + (isSigned ? "signed" : "      ") + "  " + (inManifest ? "manifest" : "        ") + "  ");
+		if (triage) {
+			long start = System.nanoTime();
+			try {
+				triage(jarFile, verification);
+			} finally {
+				verification.triageNanos = System.nanoTime() - start;
 			}
+		}
 
-			if (isSigned) {
-				for (int i = 0; i < codeSigners.length; i++) {
-					Certificate cert = codeSigners[i].getSignerCertPath().getCertificates().get(0);
-					Timestamp timestamp = codeSigners[i].getTimestamp();
-					if (timestamp != null) {
-						log.finer("  Found timestamp.");
-						CertPath cp = timestamp.getSignerCertPath();
-						try {
-							log.finer("  Validating timestamp certificate path");
-							validatePath(cp);
-							params.setDate(timestamp.getTimestamp());
-						} catch (Exception e) {
-							if (e instanceof CertificateExpiredException || e.getCause() instanceof CertificateExpiredException) {
-								showErr("Time stamping authority certificate expired");
-							} else if ("Path does not chain with any of the trust anchors".equals(e.getMessage())) {
-								showErr("Time stamping authority certificate not trusted");
-							} else
-								showErr("Timestamp: " + e.getMessage());
-							log.log(Level.FINE, "Timestamp certificate is not valid", e);
-						}
+		VerificationEvents.EntryDigest event = VerificationEvents.beginEntryDigest();
+		final Manifest manifest = jarFile.getManifest();
 
-					}
+		EntryDigester digester = null;
+		String reader = "jarfile";
+		if (verification.previous != null) {
+			digester = IncrementalEntryDigester.open(jarFile, verification.previous);
+			if (digester == null)
+				log.fine("Jar can't be verified incrementally, reading all entries");
+			else
+				reader = "incremental";
+		}
+		if (digester == null && mapped) {
+			digester = MappedJarDigester.open(jarFile, parallelism);
+			if (digester == null)
+				log.fine("Jar can't be mapped, using JarFile");
+			else
+				reader = "mapped";
+		}
+		if (digester == null && parallelism > 1) {
+			log.fine("Reading entries with " + parallelism + " threads");
+			digester = new ParallelEntryDigester(jarFile, parallelism);
+			reader = "parallel";
+		}
 
-					List<Certificate> x = new ArrayList<Certificate>();
-					for (Certificate c : codeSigners[i].getSignerCertPath().getCertificates()) {
-						x.add(c);
-					}
-					CertPath path = CertificateFactory.getInstance("X.509").generateCertPath(x);
+		try {
+			if (digester != null) {
+				digester.digest();
+				// all signers are known once the entries are digested
+				Set<CodeSigner> signers = new LinkedHashSet<CodeSigner>();
+				int n = Math.min(jarFile.size(), digester.getFirstInvalid());
+				for (int i = 0; i < n; i++) {
+					CodeSigner[] codeSigners = digester.getCodeSigners(i);
+					if (codeSigners != null)
+						Collections.addAll(signers, codeSigners);
+				}
+				prefetchRevocation(signers, verification);
+			}
 
-					if (cert instanceof X509Certificate) {
+			int index = 0;
+			Enumeration<JarEntry> entriesEnum = jarFile.entries();
+			while (entriesEnum.hasMoreElements()) {
+				JarEntry entry = entriesEnum.nextElement();
+				InputStream is = null;
 
-						if (log.isLoggable(Level.FINEST)) {
-							log.finest("  Used certificate  SerialNumber: " + ((X509Certificate) cert).getSerialNumber()
-									+ "; Subject: " + ((X509Certificate) cert).getSubjectDN());
+				if (log.isLoggable(Level.FINEST))
+					log.finest("Checking file " + entry);
+				// collecting all the problems, the entries after the first
+				// invalid one are read with the JarFile
+				boolean digested = digester != null
+						&& (index < digester.getFirstInvalid() || verification.problems == null);
+				if (digested) {
+					if (index == digester.getFirstInvalid()) {
+						if (log.isLoggable(Level.FINEST))
+							log.finest("  Invalid signature!!!");
+						throw new InvalidException();
+					}
+					if (entry.getSize() > 0)
+						verification.bytes += entry.getSize();
+				} else {
+					try {
+						is = jarFile.getInputStream(entry);
+						// Checking SHA-1
+						int n;
+						while ((n = is.read(buffer, 0, buffer.length)) != -1)
+							verification.bytes += n;
+					} catch (java.lang.SecurityException e) {
+						if (log.isLoggable(Level.FINEST))
+							log.log(Level.FINEST, "  Invalid signature!!!", e);
+						fail(verification, new InvalidException(), entry.getName(), null, e.getMessage());
+						verification.entries++;
+						index++;
+						continue;
+					} finally {
+						if (is != null) {
+							is.close();
 						}
-						boolean correctUsage = isCertForCodeSigning((X509Certificate) cert);// TODO
-						if (!correctUsage)
-							showErr("Wrong key usage");
+					}
+				}
 
-						if (!skipCertUsage && !correctUsage) {
-							log.fine("Certificate can't be used to signing code");
-							throw new InvalidException();
-						}
+				CodeSigner[] codeSigners = digested ? digester.getCodeSigners(index) : entry.getCodeSigners();
+				index++;
 
-						if (log.isLoggable(Level.FINEST)) {
-							log.finest("  usage: " + (correctUsage ? "correct" : "incorrect") + ";");
-						}
-					}
+				checkEntry(entry, codeSigners, manifest, verification);
+			}
+		} finally {
+			commit(event, jarFile.getName(), reader, verification);
+		}
 
-					try {
-						log.finest("Validating signer certificate path");
-						validatePath(path);
-					} catch (ValidatorException e) {
-						throw e;
-					} catch (Exception e) {
-						// e.printStackTrace();
-						if ("Path does not chain with any of the trust anchors".equals(e.getMessage())) {
-							showErr("Signer certificate not trusted");
-						}
-						// else
-						// showErr(e.getMessage());
+		checkSigned(verification);
+	}
 
-						if (e instanceof CertificateExpiredException) {
-							throw new ExpiredException();
-						} else if (e.getCause() instanceof CertificateExpiredException) {
-							throw new ExpiredException();
-						}
+	private NestedJarResult verifyNestedJar(String name, InputStream in, TrustContext trust, PrintStream err,
+			int depth) {
+		if (log.isLoggable(Level.FINE))
+			log.fine("Verifying nested jar " + name);
+		Verification verification = new Verification(trust, err);
+		// all the entries are read, for the jars stored after a failure
+		verification.problems = new ArrayList<VerificationResult.Problem>();
+		verification.unsignedNames = new ArrayList<String>();
+		if (depth < MAX_NESTING_DEPTH)
+			verification.nestedJars = new LinkedHashMap<String, byte[]>();
+		Exception failure = null;
+		try {
+			verifyStream(in, verification);
+		} catch (Exception e) {
+			failure = e;
+		}
 
-						log.log(Level.FINE, "Certificate path can't be verified!", e);
-						throw new NotTrustedException();
+		List<NestedJarResult> nested = new ArrayList<NestedJarResult>();
+		if (verification.nestedJars != null) {
+			for (Map.Entry<String, byte[]> jar : verification.nestedJars.entrySet()) {
+				nested.add(verifyNestedJar(jar.getKey(), new ByteArrayInputStream(jar.getValue()), trust, err,
+						depth + 1));
+			}
+			verification.nestedJars.clear();
+		}
+		return new NestedJarResult(name, failure, nested);
+	}
+
+	public List<NestedJarResult> verifyNestedJars(final JarFile jarFile) throws IOException, KeyStoreException,
+			CertificateException, NoSuchAlgorithmException, CRLException, ValidatorException {
+		return verifyNestedJars(jarFile, getTrustContext(), System.err);
+	}
+
+	/**
+	 * Verifies jars stored in the jar, like libraries of a "fat" jar, reading
+	 * them directly from the outer jar, and the jars stored in them, up to
+	 * {@link #MAX_NESTING_DEPTH} levels. {@link #getNestedParallelism()} jars
+	 * of the outer jar are verified at the same time, each with the jars
+	 * stored in it. A nested jar is read in full, whatever its result, and the
+	 * jars stored in it are kept in memory until they are verified.
+	 *
+	 * @return result of each nested jar, in the order of the entries
+	 */
+	public List<NestedJarResult> verifyNestedJars(final JarFile jarFile, final TrustContext trust,
+			final PrintStream err) throws IOException {
+		// the JarFile verifier must not be used by many threads, zip file may
+		final ZipFile zipFile = new ZipFile(jarFile.getName());
+		ExecutorService pool = Executors.newFixedThreadPool(nestedParallelism);
+		try {
+			List<Future<NestedJarResult>> futures = new ArrayList<Future<NestedJarResult>>();
+			Enumeration<JarEntry> entriesEnum = jarFile.entries();
+			while (entriesEnum.hasMoreElements()) {
+				final JarEntry entry = entriesEnum.nextElement();
+				if (!isNestedJar(entry))
+					continue;
+				futures.add(pool.submit(new Callable<NestedJarResult>() {
+					@Override
+					public NestedJarResult call() throws Exception {
+						InputStream in = zipFile.getInputStream(zipFile.getEntry(entry.getName()));
+						try {
+							return verifyNestedJar(entry.getName(), in, trust, err, 1);
+						} finally {
+							in.close();
+						}
 					}
+				}));
+			}
+
+			List<NestedJarResult> results = new ArrayList<NestedJarResult>();
+			for (Future<NestedJarResult> f : futures) {
+				try {
+					results.add(f.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					if (e.getCause() instanceof Error)
+						throw (Error) e.getCause();
+					throw new IOException(e.getCause());
 				}
 			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} finally {
+			pool.shutdownNow();
+			zipFile.close();
+		}
+	}
 
+	void verifySigner(final CodeSigner codeSigner, final Verification verification)
+			throws CertificateParsingException, ValidatorException {
+		Map<CodeSigner, ValidatorException> verdicts = verification.signerVerdicts;
+		if (verdicts.containsKey(codeSigner)) {
+			ValidatorException verdict = verdicts.get(codeSigner);
+			// collected once, when found
+			if (verdict != null && verification.problems == null)
+				throw verdict;
+			return;
 		}
 
-		if (!anySigned) {
-			if (log.isLoggable(Level.FINE))
-				log.fine("File is not signed");
-			throw new NotSignedException();
-		} else if (hasUnsignedEntry) {
-			showErr("Contains unsigned entries");
-			if (log.isLoggable(Level.FINE))
-				log.fine("File contains unsigned entries!");
-			throw new UnsignedEntriesException();
+		long start = System.nanoTime();
+		try {
+			validateSigner(codeSigner, verification);
+			verdicts.put(codeSigner, null);
+		} catch (ValidatorException e) {
+			verdicts.put(codeSigner, e);
+			fail(verification, e, null, codeSigner, e.getStdErrMessage());
+		} finally {
+			verification.signerNanos += System.nanoTime() - start;
 		}
+	}
 
-		if (log.isLoggable(Level.FINE))
-			log.fine("File verified");
+	/**
+	 * Checks all signers of an entry, requesting their OCSP responses at once.
+	 */
+	void verifySigners(CodeSigner[] codeSigners, Verification verification) throws CertificateParsingException,
+			ValidatorException {
+		if (codeSigners.length > 1 || !verification.signerVerdicts.containsKey(codeSigners[0]))
+			prefetchRevocation(Arrays.asList(codeSigners), verification);
+		for (CodeSigner codeSigner : codeSigners) {
+			verifySigner(codeSigner, verification);
+		}
+	}
+
+	private void verifyStream(final InputStream in, final Verification verification) throws IOException,
+			CertificateException, ValidatorException {
+		VerificationEvents.JarVerification event = VerificationEvents.beginJarVerification();
+		final VerificationMetrics m = metrics;
+		long start = m != null ? System.nanoTime() : 0;
+		ValidatorException failure = null;
+		try {
+			verifyJar(in, verification);
+		} catch (ValidatorException e) {
+			failure = e;
+		} catch (Exception e) {
+			// I/O or certificate parsing error, rethrown as it is
+			recordError(m, e, verification, start);
+			throw e;
+		}
+		if (m != null)
+			m.jarVerified(failure, verification.entries, verification.bytes, System.nanoTime() - start);
+		if (event != null && event.shouldCommit()) {
+			event.entries = verification.entries;
+			event.unsignedEntries = verification.unsignedEntries;
+			event.bytes = verification.bytes;
+			event.result = VerificationEvents.result(failure);
+			event.commit();
+		}
+		if (failure != null)
+			throw failure;
 	}
 
 }
@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compact index of the sections of a manifest or signature file, used instead
+ * of a {@link Manifest} with an {@link Attributes} map for each section. It
+ * is built in one pass over the file; the names of the sections and the
+ * values of their <code>*-Digest</code> attributes are kept as UTF-8 bytes in
+ * a single array and everything else in primitive arrays, so a jar with
+ * hundreds of thousands of entries takes tens of bytes per entry. Other
+ * attributes of the sections are skipped, the main attributes are kept as
+ * {@link Attributes}.
+ * <p>
+ * The file is parsed like by {@link Manifest}, what it rejects is rejected
+ * with {@link IOException}. Sections with the same name, which
+ * {@link Manifest} merges, and repeated digest attributes are only reported
+ * by {@link #hasDuplicates()}.
+ * </p>
+ */
+final class ManifestIndex {
+
+	/**
+	 * Reads manifest lines the same way as {@link Manifest}.
+	 */
+	private static class LineReader {
+
+		private final byte[] buffer = new byte[8192];
+
+		private final InputStream in;
+
+		// without the line terminator
+		int length;
+
+		// the same limit as of Manifest
+		final byte[] line = new byte[512];
+
+		private int limit;
+
+		private int pos;
+
+		LineReader(InputStream in) {
+			this.in = in;
+		}
+
+		private boolean fill() throws IOException {
+			if (pos < limit)
+				return true;
+			int n = in.read(buffer, 0, buffer.length);
+			if (n <= 0)
+				return false;
+			pos = 0;
+			limit = n;
+			return true;
+		}
+
+		int peek() throws IOException {
+			return fill() ? buffer[pos] : -1;
+		}
+
+		/**
+		 * @return <code>false</code> at the end of the file; an unterminated
+		 *         last line is ignored, like by {@link Manifest}
+		 */
+		boolean readLine() throws IOException {
+			int n = 0;
+			while (fill()) {
+				byte b = buffer[pos++];
+				if (b == '\n' || b == '\r') {
+					if (b == '\r' && fill() && buffer[pos] == '\n')
+						pos++;
+					length = n;
+					return true;
+				}
+				if (n == line.length - 1)
+					throw new IOException("Manifest line too long");
+				line[n++] = b;
+			}
+			return false;
+		}
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static int[] grow(int[] array, int size) {
+		return size < array.length ? array : Arrays.copyOf(array, array.length * 2);
+	}
+
+	private static boolean isValidName(byte[] line, int length) {
+		if (length == 0 || length > 70)
+			return false;
+		for (int i = 0; i < length; i++) {
+			byte b = line[i];
+			if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '_' || b == '-'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return 31 to the power, the factor of a prefix in
+	 *         {@link String#hashCode()}
+	 */
+	private static int power31(int exponent) {
+		int result = 1;
+		int base = 31;
+		while (exponent > 0) {
+			if ((exponent & 1) != 0)
+				result *= base;
+			base *= base;
+			exponent >>= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the index of the manifest of the jar directly from the zip file,
+	 * without the JDK jar verifier.
+	 *
+	 * @return the index or <code>null</code> if the jar has no manifest
+	 */
+	static ManifestIndex read(String jarFileName) throws IOException {
+		ZipFile zipFile = new ZipFile(jarFileName);
+		try {
+			ZipEntry entry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+			if (entry == null)
+				return null;
+			InputStream in = zipFile.getInputStream(entry);
+			try {
+				return new ManifestIndex(in);
+			} finally {
+				in.close();
+			}
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	private byte[] data = new byte[8192];
+
+	private int dataLength;
+
+	private int digestCount;
+
+	// index to keys of each digest attribute
+	private byte[] digestKeys = new byte[1024];
+
+	// start of the value of each digest attribute in data
+	private int[] digestStarts = new int[1024];
+
+	private boolean duplicates;
+
+	// first digest attribute of each section, and the digest count at the end
+	private int[] firstDigests = new int[1024];
+
+	// String.hashCode() of the name of each section
+	private int[] hashes = new int[1024];
+
+	// digest attribute names, e.g. SHA-256-Digest
+	private final List<String> keys = new ArrayList<String>();
+
+	private final Attributes mainAttributes = new Attributes();
+
+	// start of each section name in data, and the data length at the end
+	private int[] nameStarts = new int[1024];
+
+	private int sectionCount;
+
+	// open addressing hash table of the sections, index + 1
+	private final int[] table;
+
+	ManifestIndex(InputStream in) throws IOException {
+		LineReader reader = new LineReader(in);
+		readAttributes(reader, -1);
+
+		byte[] name = new byte[256];
+		int nameLength = -1;
+		boolean skipEmptyLines = true;
+		while (reader.readLine()) {
+			byte[] line = reader.line;
+			int length = reader.length;
+			if (length == 0 && skipEmptyLines)
+				continue;
+			skipEmptyLines = false;
+			if (nameLength < 0) {
+				if (length < 6 || (line[0] | 0x20) != 'n' || (line[1] | 0x20) != 'a' || (line[2] | 0x20) != 'm'
+						|| (line[3] | 0x20) != 'e' || line[4] != ':' || line[5] != ' ')
+					throw new IOException("Invalid manifest format");
+				nameLength = 0;
+				name = append(name, nameLength, line, 6, length - 6);
+				nameLength += length - 6;
+			} else {
+				// continuation of a wrapped name
+				name = append(name, nameLength, line, 1, length - 1);
+				nameLength += length - 1;
+			}
+			if (reader.peek() == ' ')
+				continue;
+
+			String decoded = new String(name, 0, nameLength, UTF8);
+			startSection(decoded.getBytes(UTF8), decoded.hashCode());
+			readAttributes(reader, sectionCount - 1);
+			nameLength = -1;
+			skipEmptyLines = true;
+		}
+
+		nameStarts = grow(nameStarts, sectionCount);
+		nameStarts[sectionCount] = dataLength;
+		firstDigests = grow(firstDigests, sectionCount);
+		firstDigests[sectionCount] = digestCount;
+		nameStarts = Arrays.copyOf(nameStarts, sectionCount + 1);
+		firstDigests = Arrays.copyOf(firstDigests, sectionCount + 1);
+		digestKeys = Arrays.copyOf(digestKeys, digestCount);
+		digestStarts = Arrays.copyOf(digestStarts, digestCount);
+		data = Arrays.copyOf(data, dataLength);
+
+		hashes = Arrays.copyOf(hashes, sectionCount);
+		table = new int[Integer.highestOneBit(Math.max(1, sectionCount)) * 4];
+		for (int section = 0; section < sectionCount; section++) {
+			int slot = slot(hashes[section]);
+			while (table[slot] != 0) {
+				if (hashes[table[slot] - 1] == hashes[section] && sameName(table[slot] - 1, section))
+					duplicates = true;
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = section + 1;
+		}
+	}
+
+	private void addData(byte[] bytes, int offset, int length) {
+		if (dataLength + length > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+		System.arraycopy(bytes, offset, data, dataLength, length);
+		dataLength += length;
+	}
+
+	private void addDigest(String key, byte[] value, int offset, int length) throws IOException {
+		int firstOfSection = firstDigests[sectionCount - 1];
+		int keyIndex = -1;
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i).equalsIgnoreCase(key)) {
+				keyIndex = i;
+				break;
+			}
+		}
+		if (keyIndex < 0) {
+			if (keys.size() == 256)
+				throw new IOException("Too many digest algorithms");
+			keyIndex = keys.size();
+			keys.add(key);
+		}
+		for (int d = firstOfSection; d < digestCount; d++) {
+			if ((digestKeys[d] & 0xff) == keyIndex)
+				duplicates = true;
+		}
+		if (digestCount == digestKeys.length) {
+			digestKeys = Arrays.copyOf(digestKeys, digestKeys.length * 2);
+			digestStarts = Arrays.copyOf(digestStarts, digestStarts.length * 2);
+		}
+		digestKeys[digestCount] = (byte) keyIndex;
+		digestStarts[digestCount] = dataLength;
+		digestCount++;
+		addData(value, offset, length);
+	}
+
+	private byte[] append(byte[] buffer, int used, byte[] bytes, int offset, int length) {
+		if (used + length > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, used + length));
+		System.arraycopy(bytes, offset, buffer, used, length);
+		return buffer;
+	}
+
+	/**
+	 * Finds the section of an entry, also named with the "./" or "/" prefix
+	 * the JDK accepts, without allocating.
+	 *
+	 * @return index of the section or -1
+	 */
+	int find(String name) {
+		int section = find("", name);
+		if (section < 0) {
+			section = find("./", name);
+			if (section < 0)
+				section = find("/", name);
+		}
+		return section;
+	}
+
+	private int find(String prefix, String name) {
+		int hash = prefix.hashCode() * power31(name.length()) + name.hashCode();
+		for (int slot = slot(hash); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+			int section = table[slot] - 1;
+			if (hashes[section] == hash && matches(section, prefix, name))
+				return section;
+		}
+		return -1;
+	}
+
+	int getDigestCount(int section) {
+		return firstDigests[section + 1] - firstDigests[section];
+	}
+
+	/**
+	 * @return name of the digest attribute, e.g. <code>SHA-256-Digest</code>,
+	 *         the same instance for all sections
+	 */
+	String getDigestKey(int section, int i) {
+		return keys.get(digestKeys[firstDigests[section] + i] & 0xff);
+	}
+
+	String getDigestValue(int section, int i) {
+		int d = firstDigests[section] + i;
+		int end = d + 1 < firstDigests[section + 1] ? digestStarts[d + 1] : nameStarts[section + 1];
+		return new String(data, digestStarts[d], end - digestStarts[d], UTF8);
+	}
+
+	Attributes getMainAttributes() {
+		return mainAttributes;
+	}
+
+	String getName(int section) {
+		return new String(data, nameStarts[section], nameEnd(section) - nameStarts[section], UTF8);
+	}
+
+	/**
+	 * @return <code>true</code> if sections with the same name or digest
+	 *         attributes repeated in a section were found
+	 */
+	boolean hasDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Compares UTF-8 encoding of the string with the data.
+	 *
+	 * @return position after the string in the data, or -1
+	 */
+	private int match(int pos, int end, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (pos >= end || data[pos++] != c)
+					return -1;
+				continue;
+			}
+			int cp = c;
+			if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+				cp = Character.toCodePoint(c, s.charAt(++i));
+			else if (Character.isSurrogate(c))
+				// encoded as '?' by String.getBytes()
+				cp = '?';
+			int n = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+			if (pos + n > end)
+				return -1;
+			if (n == 1) {
+				if (data[pos++] != cp)
+					return -1;
+				continue;
+			}
+			int lead = n == 2 ? 0xc0 : n == 3 ? 0xe0 : 0xf0;
+			if ((data[pos++] & 0xff) != (lead | (cp >> (6 * (n - 1)))))
+				return -1;
+			for (int k = n - 2; k >= 0; k--) {
+				if ((data[pos++] & 0xff) != (0x80 | ((cp >> (6 * k)) & 0x3f)))
+					return -1;
+			}
+		}
+		return pos;
+	}
+
+	private boolean matches(int section, String prefix, String name) {
+		int end = nameEnd(section);
+		int pos = match(nameStarts[section], end, prefix);
+		if (pos >= 0)
+			pos = match(pos, end, name);
+		return pos == end;
+	}
+
+	private int nameEnd(int section) {
+		return firstDigests[section] < firstDigests[section + 1] ? digestStarts[firstDigests[section]]
+				: nameStarts[section + 1];
+	}
+
+	/**
+	 * Reads attributes up to an empty line, like {@link Attributes} does.
+	 *
+	 * @param section
+	 *            section the digest attributes are added to, -1 for the main
+	 *            attributes
+	 */
+	private void readAttributes(LineReader reader, int section) throws IOException {
+		String name = null;
+		byte[] value = new byte[256];
+		int valueLength = 0;
+		while (reader.readLine()) {
+			byte[] line = reader.line;
+			int length = reader.length;
+			if (length == 0)
+				break;
+			if (line[0] == ' ') {
+				if (name == null)
+					throw new IOException("Misplaced continuation line");
+				value = append(value, valueLength, line, 1, length - 1);
+				valueLength += length - 1;
+			} else {
+				int i = 0;
+				while (line[i++] != ':') {
+					if (i >= length)
+						throw new IOException("Invalid header field");
+				}
+				if (i >= length || line[i++] != ' ' || !isValidName(line, i - 2))
+					throw new IOException("Invalid header field");
+				name = new String(line, 0, i - 2, UTF8);
+				valueLength = 0;
+				value = append(value, valueLength, line, i, length - i);
+				valueLength += length - i;
+			}
+			if (reader.peek() == ' ')
+				continue;
+
+			if (section < 0)
+				mainAttributes.putValue(name, new String(value, 0, valueLength, UTF8));
+			else if (name.toUpperCase(Locale.ENGLISH).endsWith("-DIGEST"))
+				addDigest(name, value, 0, valueLength);
+		}
+	}
+
+	private boolean sameName(int a, int b) {
+		int length = nameEnd(a) - nameStarts[a];
+		if (length != nameEnd(b) - nameStarts[b])
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (data[nameStarts[a] + i] != data[nameStarts[b] + i])
+				return false;
+		}
+		return true;
+	}
+
+	int size() {
+		return sectionCount;
+	}
+
+	private int slot(int hash) {
+		// spreads the similar hashes of similar names
+		return (hash * 0x9e3779b9 >>> 7) & (table.length - 1);
+	}
+
+	private void startSection(byte[] name, int hash) {
+		nameStarts = grow(nameStarts, sectionCount);
+		firstDigests = grow(firstDigests, sectionCount);
+		hashes = grow(hashes, sectionCount);
+		nameStarts[sectionCount] = dataLength;
+		firstDigests[sectionCount] = digestCount;
+		hashes[sectionCount] = hash;
+		sectionCount++;
+		addData(name, 0, name.length);
+	}
+
+}
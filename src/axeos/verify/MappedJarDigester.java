@@ -0,0 +1,651 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.CodeSigner;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Checks entry digests reading the memory mapped jar file directly, without
+ * the JDK jar verifier streams. STORED entries are digested straight from the
+ * mapped region, DEFLATED ones are inflated into pooled direct buffers.
+ * <p>
+ * The signature files are still processed by the JDK: the first entry of each
+ * group of entries listed in the same signature files and having the same
+ * digest algorithms is read with the {@link JarFile} and its code signers are
+ * used for the whole group. This is exact only when the manifest has not
+ * changed since it was signed, so {@link #open(JarFile, int)} accepts only
+ * jars where every signature file has a matching
+ * <code>*-Digest-Manifest</code>. Entries with digests not matching the
+ * manifest, META-INF and directory entries and anything unusual are read
+ * with the {@link JarFile} too, so the results are the same as when reading
+ * all entries with it.
+ * </p>
+ */
+class MappedJarDigester implements EntryDigester {
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private static final int CEN_HEADER = 46;
+
+	private static final int CEN_SIGNATURE = 0x02014b50;
+
+	private static final int END_HEADER = 22;
+
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	private static final int LOC_HEADER = 30;
+
+	private static final int LOC_SIGNATURE = 0x04034b50;
+
+	private static final int ZIP64_END_HEADER = 56;
+
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+	private static final int ZIP64_LOCATOR_HEADER = 20;
+
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+	private static final Logger log = Logger.getLogger(MappedJarDigester.class.getName());
+
+	/**
+	 * Entry has to be read with the {@link JarFile}.
+	 */
+	private static final byte READ_JAR_FILE = 0;
+
+	/**
+	 * Entry is not signed, its data could be read.
+	 */
+	private static final byte UNSIGNED = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Entry digests match the manifest.
+	 */
+	private static final byte VERIFIED = 2;
+
+	private static ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	/**
+	 * @return manifest section of the entry, looked up also with the "./" and
+	 *         "/" prefixes the JDK accepts, or <code>null</code>
+	 */
+	static Attributes manifestAttributes(Manifest manifest, String name) {
+		Attributes attr = manifest.getAttributes(name);
+		if (attr == null) {
+			attr = manifest.getAttributes("./" + name);
+			if (attr == null)
+				attr = manifest.getAttributes("/" + name);
+		}
+		return attr;
+	}
+
+	/**
+	 * Indexes manifest or signature file.
+	 *
+	 * @return the index or <code>null</code> if it is not supported and the
+	 *         jar has to be read with the {@link JarFile}
+	 */
+	static ManifestIndex index(InputStream in, String name) {
+		try {
+			ManifestIndex index = new ManifestIndex(in);
+			if (!index.hasDuplicates())
+				return index;
+			log.fine("Duplicate sections or digests in " + name);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Invalid " + name, e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the instance of the string stored in the map, so the same group
+	 *         strings of many entries are not kept many times
+	 */
+	static String intern(Map<String, String> map, String s) {
+		String old = map.putIfAbsent(s, s);
+		return old != null ? old : s;
+	}
+
+	static String normalize(String name) {
+		if (name.startsWith("./"))
+			name = name.substring(2);
+		if (name.startsWith("/"))
+			name = name.substring(1);
+		return name;
+	}
+
+	/**
+	 * Prepares digesting of the jar.
+	 *
+	 * @return digester or <code>null</code> if the jar can't be handled and
+	 *         has to be read with the {@link JarFile}
+	 */
+	static MappedJarDigester open(JarFile jarFile, int parallelism) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(jarFile.getName(), "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				log.fine("Jar too large to be mapped");
+				return null;
+			}
+			ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			MappedJarDigester digester = new MappedJarDigester(jarFile, map, parallelism);
+			return digester.parse() ? digester : null;
+		} finally {
+			// the mapping stays valid after the channel is closed
+			file.close();
+		}
+	}
+
+	private static void releaseBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * @return <code>true</code> if the signature file has a
+	 *         <code>*-Digest-Manifest</code> matching the raw manifest, so
+	 *         the JDK accepts all its sections without checking them
+	 */
+	static boolean signsWholeManifest(Attributes sfMain, byte[] rawManifest) {
+		for (Map.Entry<Object, Object> se : sfMain.entrySet()) {
+			String key = se.getKey().toString();
+			if (!key.toUpperCase(Locale.ENGLISH).endsWith("-DIGEST-MANIFEST"))
+				continue;
+			try {
+				MessageDigest md = MessageDigest.getInstance(key.substring(0, key.length() - 16), "SUN");
+				if (MessageDigest.isEqual(md.digest(rawManifest),
+						Base64.getMimeDecoder().decode((String) se.getValue())))
+					return true;
+			} catch (NoSuchAlgorithmException e) {
+				continue;
+			} catch (NoSuchProviderException e) {
+				continue;
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+		}
+		return false;
+	}
+
+	private final CodeSigner[][] codeSigners;
+
+	private final long[] compressedSizes;
+
+	private final AtomicInteger firstInvalid = new AtomicInteger(Integer.MAX_VALUE);
+
+	private final String[] groups;
+
+	private final JarFile jarFile;
+
+	private final int[] localHeaders;
+
+	private final Map<String, String> interned = new ConcurrentHashMap<String, String>();
+
+	private ManifestIndex manifest;
+
+	private final ByteBuffer map;
+
+	private final int[] methods;
+
+	private final String[] names;
+
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	private final int parallelism;
+
+	// indices of the signature files listing each manifest section
+	private String[] signatureFiles;
+
+	private final byte[] states;
+
+	private MappedJarDigester(JarFile jarFile, ByteBuffer map, int parallelism) {
+		this.jarFile = jarFile;
+		this.map = map;
+		this.parallelism = parallelism;
+
+		List<String> l = new ArrayList<String>();
+		Enumeration<JarEntry> entriesEnum = jarFile.entries();
+		while (entriesEnum.hasMoreElements()) {
+			l.add(entriesEnum.nextElement().getName());
+		}
+		this.names = l.toArray(new String[l.size()]);
+		this.codeSigners = new CodeSigner[names.length][];
+		this.compressedSizes = new long[names.length];
+		this.groups = new String[names.length];
+		this.localHeaders = new int[names.length];
+		this.methods = new int[names.length];
+		this.states = new byte[names.length];
+	}
+
+	/**
+	 * Digests entry data, inflating it when needed.
+	 *
+	 * @return <code>false</code> if the data can't be read
+	 */
+	private boolean consume(int index, List<MessageDigest> digests, ByteBuffer buffer, Inflater inflater) {
+		int pos = localHeaders[index];
+		if (pos < 0 || pos > map.limit() - LOC_HEADER || map.getInt(pos) != LOC_SIGNATURE)
+			return false;
+		long start = (long) pos + LOC_HEADER + (map.getShort(pos + 26) & 0xffff) + (map.getShort(pos + 28) & 0xffff);
+		if (start + compressedSizes[index] > map.limit())
+			return false;
+		ByteBuffer data = map.duplicate();
+		data.position((int) start);
+		data.limit((int) (start + compressedSizes[index]));
+
+		if (methods[index] == 0) {
+			for (MessageDigest md : digests) {
+				md.update(data.duplicate());
+			}
+			return true;
+		}
+
+		inflater.reset();
+		inflater.setInput(data);
+		boolean dummyByte = false;
+		try {
+			while (!inflater.finished()) {
+				buffer.clear();
+				int n = inflater.inflate(buffer);
+				if (n == 0) {
+					if (inflater.needsDictionary() || dummyByte || !inflater.needsInput())
+						return false;
+					// the same as the JDK zip streams do at the end of the data
+					inflater.setInput(new byte[1]);
+					dummyByte = true;
+					continue;
+				}
+				buffer.flip();
+				for (MessageDigest md : digests) {
+					buffer.mark();
+					md.update(buffer);
+					buffer.reset();
+				}
+			}
+		} catch (DataFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the entries, the JarFile is used only by the calling thread.
+	 */
+	@Override
+	public void digest() throws IOException {
+		if (parallelism > 1) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+				for (int i = 0; i < parallelism; i++) {
+					workers.add(new Callable<Void>() {
+						@Override
+						public Void call() {
+							digestEntries();
+							return null;
+						}
+					});
+				}
+				for (Future<Void> f : pool.invokeAll(workers)) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						throw new IOException(e.getCause());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			} finally {
+				pool.shutdownNow();
+			}
+		} else {
+			digestEntries();
+		}
+
+		// signers of the first entry read with the JarFile from each group
+		Map<String, CodeSigner[]> groupSigners = new HashMap<String, CodeSigner[]>();
+		byte[] buffer = new byte[8192];
+		for (int index = 0; index < names.length; index++) {
+			if (states[index] == UNSIGNED)
+				continue;
+			if (states[index] == VERIFIED && groupSigners.containsKey(groups[index])) {
+				codeSigners[index] = groupSigners.get(groups[index]);
+				continue;
+			}
+
+			JarEntry entry = jarFile.getJarEntry(names[index]);
+			InputStream is = null;
+			try {
+				is = jarFile.getInputStream(entry);
+				while ((is.read(buffer, 0, buffer.length)) != -1)
+					;
+			} catch (java.lang.SecurityException e) {
+				if (log.isLoggable(Level.FINEST))
+					log.log(Level.FINEST, "  Invalid signature of " + names[index], e);
+				firstInvalid.set(index);
+				return;
+			} finally {
+				if (is != null) {
+					is.close();
+				}
+			}
+			codeSigners[index] = entry.getCodeSigners();
+			if (states[index] == VERIFIED)
+				groupSigners.put(groups[index], codeSigners[index]);
+		}
+		if (log.isLoggable(Level.FINE))
+			log.fine(groupSigners.size() + " groups of mapped entries");
+	}
+
+	private void digestEntries() {
+		ByteBuffer buffer = acquireBuffer();
+		Inflater inflater = new Inflater(true);
+		Map<String, MessageDigest> createdDigests = new HashMap<String, MessageDigest>();
+		List<MessageDigest> digests = new ArrayList<MessageDigest>();
+		List<byte[]> expected = new ArrayList<byte[]>();
+		try {
+			int index;
+			while ((index = nextIndex.getAndIncrement()) < names.length) {
+				if (states[index] == READ_JAR_FILE)
+					continue;
+				digests.clear();
+				expected.clear();
+				StringBuilder group = null;
+
+				int section = manifest.find(normalize(names[index]));
+				String files = section < 0 ? null : signatureFiles[section];
+				if (files != null) {
+					group = new StringBuilder(files);
+					for (int i = 0; i < manifest.getDigestCount(section); i++) {
+						// *-Digest, the same instance for all entries
+						String key = manifest.getDigestKey(section, i);
+						MessageDigest md = createdDigests.get(key);
+						if (md == null) {
+							try {
+								// the JDK jar verifier uses the SUN provider
+								md = MessageDigest.getInstance(key.substring(0, key.length() - 7), "SUN");
+							} catch (NoSuchAlgorithmException e) {
+								continue;
+							} catch (NoSuchProviderException e) {
+								continue;
+							}
+							createdDigests.put(key, md);
+						}
+						try {
+							expected.add(Base64.getMimeDecoder().decode(manifest.getDigestValue(section, i)));
+						} catch (IllegalArgumentException e) {
+							// reported by the JarFile
+							digests.clear();
+							break;
+						}
+						md.reset();
+						digests.add(md);
+						group.append(' ').append(key, 0, key.length() - 7);
+					}
+					if (digests.isEmpty()) {
+						// reported as "digest missing"
+						states[index] = READ_JAR_FILE;
+						continue;
+					}
+				}
+
+				if (!consume(index, digests, buffer, inflater)) {
+					// let the JarFile report the error
+					states[index] = READ_JAR_FILE;
+					continue;
+				}
+				if (files != null) {
+					for (int i = 0; i < digests.size(); i++) {
+						if (!MessageDigest.isEqual(digests.get(i).digest(), expected.get(i))) {
+							states[index] = READ_JAR_FILE;
+							break;
+						}
+					}
+					if (states[index] != READ_JAR_FILE) {
+						states[index] = VERIFIED;
+						groups[index] = intern(interned, group.toString());
+					}
+				}
+			}
+		} finally {
+			inflater.end();
+			releaseBuffer(buffer);
+		}
+	}
+
+	@Override
+	public CodeSigner[] getCodeSigners(int index) {
+		return codeSigners[index];
+	}
+
+	@Override
+	public int getFirstInvalid() {
+		return firstInvalid.get();
+	}
+
+	/**
+	 * Parses the central directory and the signature files.
+	 *
+	 * @return <code>false</code> if the jar is not supported
+	 */
+	private boolean parse() throws IOException {
+		int end = -1;
+		for (int pos = map.limit() - END_HEADER; pos >= Math.max(0, map.limit() - END_HEADER - 0xffff); pos--) {
+			if (map.getInt(pos) == END_SIGNATURE) {
+				end = pos;
+				break;
+			}
+		}
+		if (end < 0)
+			return false;
+		long total = map.getShort(end + 10) & 0xffff;
+		long cenSize = map.getInt(end + 12) & 0xffffffffL;
+		long cenOffset = map.getInt(end + 16) & 0xffffffffL;
+		boolean zip64 = false;
+		// jars with more than 65535 entries have the zip64 end record
+		int locator = end - ZIP64_LOCATOR_HEADER;
+		if (locator >= 0 && map.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+			long end64 = map.getLong(locator + 8);
+			if (end64 >= 0 && end64 <= locator - ZIP64_END_HEADER && map.getInt((int) end64) == ZIP64_END_SIGNATURE) {
+				long total64 = map.getLong((int) end64 + 32);
+				long cenSize64 = map.getLong((int) end64 + 40);
+				long cenOffset64 = map.getLong((int) end64 + 48);
+				// used under the same conditions as by the JDK
+				if ((total64 == total || total == 0xffff) && (cenSize64 == cenSize || cenSize == 0xffffffffL)
+						&& (cenOffset64 == cenOffset || cenOffset == 0xffffffffL)) {
+					total = total64;
+					cenSize = cenSize64;
+					cenOffset = cenOffset64;
+					end = (int) end64;
+					zip64 = true;
+				}
+			}
+		}
+		if (!zip64 && (total == 0xffff || cenOffset == 0xffffffffL)) {
+			log.fine("Invalid zip64 archive");
+			return false;
+		}
+		// data prepended to the archive, e.g. a launcher script
+		long base = end - cenSize - cenOffset;
+		if (base < 0 || total != names.length)
+			return false;
+
+		Map<String, Integer> indices = new HashMap<String, Integer>();
+		for (int i = 0; i < names.length; i++) {
+			indices.put(names[i], i);
+		}
+		Map<String, Integer> normalized = new HashMap<String, Integer>();
+		List<Integer> sfIndices = new ArrayList<Integer>();
+
+		int pos = (int) (base + cenOffset);
+		for (int n = 0; n < total; n++) {
+			if (pos > end - CEN_HEADER || map.getInt(pos) != CEN_SIGNATURE)
+				return false;
+			int flags = map.getShort(pos + 8) & 0xffff;
+			int method = map.getShort(pos + 10) & 0xffff;
+			long csize = map.getInt(pos + 20) & 0xffffffffL;
+			int nameLength = map.getShort(pos + 28) & 0xffff;
+			int extraLength = map.getShort(pos + 30) & 0xffff;
+			int commentLength = map.getShort(pos + 32) & 0xffff;
+			long local = map.getInt(pos + 42) & 0xffffffffL;
+
+			byte[] nameBytes = new byte[nameLength];
+			ByteBuffer nb = map.duplicate();
+			nb.position(pos + CEN_HEADER);
+			nb.get(nameBytes);
+			String name = new String(nameBytes, UTF8);
+			pos += CEN_HEADER + nameLength + extraLength + commentLength;
+
+			Integer index = indices.remove(name);
+			if (index == null || normalized.put(normalize(name), index) != null) {
+				log.fine("Duplicate or unknown entry " + name);
+				return false;
+			}
+			methods[index] = method;
+			compressedSizes[index] = csize;
+			localHeaders[index] = (int) (base + local);
+
+			String upper = name.toUpperCase(Locale.ENGLISH);
+			if (upper.startsWith("META-INF/") && upper.endsWith(".SF"))
+				sfIndices.add(index);
+
+			boolean supported = (flags & 1) == 0 && (method == 0 || method == 8) && csize != 0xffffffffL
+					&& local != 0xffffffffL;
+			states[index] = index == 0 || upper.startsWith("META-INF/") || name.endsWith("/") || !supported ? READ_JAR_FILE
+					: UNSIGNED;
+		}
+
+		Integer manifestIndex = normalized.get(JarFile.MANIFEST_NAME);
+		byte[] rawManifest = manifestIndex == null ? null : read(manifestIndex);
+		if (rawManifest == null) {
+			log.fine("No manifest");
+			return false;
+		}
+		manifest = index(new ByteArrayInputStream(rawManifest), JarFile.MANIFEST_NAME);
+		if (manifest == null)
+			return false;
+		signatureFiles = new String[manifest.size()];
+		Collections.sort(sfIndices);
+		for (int sf = 0; sf < sfIndices.size(); sf++) {
+			String sfName = names[sfIndices.get(sf)];
+			byte[] raw = read(sfIndices.get(sf));
+			ManifestIndex sfIndex = raw == null ? null : index(new ByteArrayInputStream(raw), sfName);
+			if (sfIndex == null)
+				return false;
+			if (!signsWholeManifest(sfIndex.getMainAttributes(), rawManifest)) {
+				log.fine("Manifest changed after signing with " + sfName);
+				return false;
+			}
+			for (int i = 0; i < sfIndex.size(); i++) {
+				int section = manifest.find(normalize(sfIndex.getName(i)));
+				if (section < 0)
+					continue;
+				String files = signatureFiles[section];
+				signatureFiles[section] = intern(interned, files == null ? Integer.toString(sf) : files + "," + sf);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads (small) entry to a byte array.
+	 */
+	private byte[] read(int index) {
+		if (methods[index] != 0 && methods[index] != 8)
+			return null;
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageDigest collector = new MessageDigest("collect") {
+			@Override
+			protected byte[] engineDigest() {
+				return null;
+			}
+
+			@Override
+			protected void engineReset() {
+			}
+
+			@Override
+			protected void engineUpdate(byte input) {
+				out.write(input);
+			}
+
+			@Override
+			protected void engineUpdate(byte[] input, int offset, int len) {
+				out.write(input, offset, len);
+			}
+		};
+		ByteBuffer buffer = acquireBuffer();
+		Inflater inflater = new Inflater(true);
+		try {
+			if (!consume(index, Collections.singletonList(collector), buffer, inflater))
+				return null;
+		} finally {
+			inflater.end();
+			releaseBuffer(buffer);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a jar stored in another jar, see
+ * {@link JarSignatureValidator#verifyNestedJars}, with the results of the
+ * jars stored in it.
+ */
+public final class NestedJarResult {
+
+	private final Exception failure;
+
+	private final String name;
+
+	private final List<NestedJarResult> nested;
+
+	NestedJarResult(String name, Exception failure, List<NestedJarResult> nested) {
+		this.name = name;
+		this.failure = failure;
+		this.nested = Collections.unmodifiableList(nested);
+	}
+
+	/**
+	 * @return the exception thrown by the verification, <code>null</code> if
+	 *         the jar is valid
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return name of the entry in the enclosing jar
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return results of the jars stored in this one, in the order of the
+	 *         entries
+	 */
+	public List<NestedJarResult> getNested() {
+		return nested;
+	}
+
+	public VerificationResult.Status getStatus() {
+		return VerificationResult.Status.of(failure);
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + getStatus();
+	}
+
+}
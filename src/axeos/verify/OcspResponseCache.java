@@ -0,0 +1,648 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PSSParameterSpec;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of OCSP responses, shared by all verifications using it. A response
+ * is used until its <code>nextUpdate</code> time; responses without one only
+ * for {@link #NO_NEXT_UPDATE_TTL} after their <code>thisUpdate</code>. When
+ * many threads need the same response, only one request is sent. A failed
+ * request, or a response not passing the checks below, fails the following
+ * requests for the same certificate at once, for {@link #FAILURE_TTL}.
+ * <p>
+ * A response is used (and stored) only if it is a successful basic response
+ * for the requested certificate, signed by its issuer or by a currently valid
+ * OCSP signing certificate the issuer issued. The certificate status and the
+ * validity at the verification date are checked by the JDK revocation checker
+ * the response is passed to, see {@link TrustContext}. With a directory,
+ * responses are also stored there and survive restarts; the directory may be
+ * shared by many processes.
+ * </p>
+ */
+public class OcspResponseCache {
+
+	/**
+	 * Minimal DER reader.
+	 */
+	private static class Der {
+
+		private final byte[] data;
+
+		private final int end;
+
+		private int pos;
+
+		Der(byte[] data) {
+			this(data, 0, data.length);
+		}
+
+		private Der(byte[] data, int pos, int end) {
+			this.data = data;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		boolean hasMore() {
+			return pos < end;
+		}
+
+		/**
+		 * @return encoding of the next element, with its tag and length
+		 */
+		byte[] nextEncoded() throws IOException {
+			int start = pos;
+			next();
+			return Arrays.copyOfRange(data, start, pos);
+		}
+
+		/**
+		 * @return contents of the next element
+		 */
+		Der next() throws IOException {
+			int start = pos + 1;
+			if (start >= end)
+				throw new IOException("Truncated DER");
+			int length = data[start++] & 0xff;
+			if (length > 0x7f) {
+				int bytes = length & 0x7f;
+				if (bytes > 3 || start + bytes > end)
+					throw new IOException("Bad DER length");
+				length = 0;
+				for (int i = 0; i < bytes; i++) {
+					length = (length << 8) | (data[start++] & 0xff);
+				}
+			}
+			if (start + length > end)
+				throw new IOException("Truncated DER");
+			pos = start + length;
+			return new Der(data, start, start + length);
+		}
+
+		int tag() {
+			return data[pos] & 0xff;
+		}
+
+		byte[] value() {
+			return Arrays.copyOfRange(data, pos, end);
+		}
+	}
+
+	/**
+	 * Response with the time it may be used until.
+	 */
+	private static class Response {
+
+		final byte[] encoded;
+
+		final long expires;
+
+		Response(byte[] encoded, long expires) {
+			this.encoded = encoded;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * How long a failed request fails the following ones at once, so
+	 * verifications do not wait for the timeout of an unreachable responder
+	 * again and again.
+	 */
+	public static final long FAILURE_TTL = 60 * 1000;
+
+	private static final byte[] ID_AD_OCSP = { 0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x01 };
+
+	private static final String ID_KP_OCSP_SIGNING = "1.3.6.1.5.5.7.3.9";
+
+	private static final String ID_PE_AUTHORITY_INFO_ACCESS = "1.3.6.1.5.5.7.1.1";
+
+	private static final byte[] ID_PKIX_OCSP_BASIC = { 0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x01, 0x01 };
+
+	/**
+	 * How long a response without <code>nextUpdate</code> is used, the JDK
+	 * accepts such responses only within its clock skew (15 minutes).
+	 */
+	public static final long NO_NEXT_UPDATE_TTL = 5 * 60 * 1000;
+
+	private static final String SUFFIX = ".ocsp";
+
+	private static final int TIMEOUT = 15000;
+
+	private static byte[] der(int tag, byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length < 0x100) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		}
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return dotted form of the encoded object identifier
+	 */
+	private static String oid(byte[] encoded) {
+		StringBuilder sb = new StringBuilder();
+		long value = 0;
+		for (int i = 0; i < encoded.length; i++) {
+			value = (value << 7) | (encoded[i] & 0x7f);
+			if ((encoded[i] & 0x80) != 0)
+				continue;
+			if (sb.length() == 0) {
+				int first = (int) Math.min(value / 40, 2);
+				sb.append(first).append('.').append(value - 40 * first);
+			} else {
+				sb.append('.').append(value);
+			}
+			value = 0;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return OCSP responder URL from the authority information access
+	 *         extension of the certificate, or <code>null</code>
+	 */
+	static URI responderURI(X509Certificate cert) {
+		byte[] ext = cert.getExtensionValue(ID_PE_AUTHORITY_INFO_ACCESS);
+		if (ext == null)
+			return null;
+		try {
+			Der descriptions = new Der(new Der(ext).next().value()).next();
+			while (descriptions.hasMore()) {
+				Der description = descriptions.next();
+				byte[] method = description.next().value();
+				if (Arrays.equals(method, ID_AD_OCSP) && description.tag() == 0x86)
+					return URI.create(new String(description.next().value(), "US-ASCII"));
+			}
+		} catch (Exception e) {
+			Logger.getLogger(OcspResponseCache.class.getName()).log(Level.FINE,
+					"Invalid authority information access extension", e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether the CertID of a response is the requested one, the NULL
+	 *         parameters of the hash algorithm may be left out
+	 */
+	private static boolean sameCertId(Der responseCertId, byte[] certId) throws IOException {
+		Der requested = new Der(certId).next();
+		if (!Arrays.equals(requested.next().next().value(), responseCertId.next().next().value()))
+			return false;
+		// issuer name and key hashes, serial number
+		for (int i = 0; i < 3; i++) {
+			if (!Arrays.equals(requested.next().value(), responseCertId.next().value()))
+				return false;
+		}
+		return true;
+	}
+
+	private static long time(Der generalizedTime) throws IOException {
+		String s = new String(generalizedTime.value(), "US-ASCII");
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return format.parse(s.substring(0, 14)).getTime();
+		} catch (ParseException e) {
+			throw new IOException("Bad time " + s);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Bad time " + s);
+		}
+	}
+
+	/**
+	 * @return whether the signature of the data verifies with the key
+	 * @throws IOException
+	 *             when the algorithm is not supported
+	 */
+	private static boolean verify(byte[] data, String algorithm, byte[] params, byte[] signature, PublicKey key)
+			throws IOException {
+		try {
+			Signature sig = Signature.getInstance(algorithm);
+			if (params != null && !Arrays.equals(params, new byte[] { 0x05, 0x00 })) {
+				AlgorithmParameters parameters = AlgorithmParameters.getInstance(algorithm);
+				parameters.init(params);
+				sig.setParameter(parameters.getParameterSpec(PSSParameterSpec.class));
+			}
+			sig.initVerify(key);
+			sig.update(data);
+			return sig.verify(signature);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unsupported OCSP response signature algorithm " + algorithm, e);
+		} catch (GeneralSecurityException e) {
+			// e.g. a key of another type
+			return false;
+		}
+	}
+
+	private final File directory;
+
+	// time until which requests fail at once, by cache key
+	private final ConcurrentMap<String, Long> failures = new ConcurrentHashMap<String, Long>();
+
+	private final ConcurrentMap<String, FutureTask<Response>> inFlight = new ConcurrentHashMap<String, FutureTask<Response>>();
+
+	private final Logger log = Logger.getLogger(OcspResponseCache.class.getName());
+
+	private final int maxEntries;
+
+	private final ConcurrentMap<String, Response> responses = new ConcurrentHashMap<String, Response>();
+
+	private volatile int timeout = TIMEOUT;
+
+	/**
+	 * Creates cache keeping the responses in memory only.
+	 */
+	public OcspResponseCache() {
+		this(null, 10000);
+	}
+
+	/**
+	 * @param directory
+	 *            directory the responses are also stored in, or
+	 *            <code>null</code>
+	 * @param maxEntries
+	 *            maximum number of responses kept in memory
+	 */
+	public OcspResponseCache(File directory, int maxEntries) {
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+		if (directory != null)
+			directory.mkdirs();
+	}
+
+	/**
+	 * @return DER encoded CertID of the certificate, with SHA-1 hashes as the
+	 *         JDK uses
+	 */
+	private byte[] certId(X509Certificate cert, X509Certificate issuer) throws IOException {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] nameHash = sha1.digest(issuer.getSubjectX500Principal().getEncoded());
+			// SubjectPublicKeyInfo: algorithm, BIT STRING with the key
+			Der keyInfo = new Der(issuer.getPublicKey().getEncoded()).next();
+			keyInfo.next();
+			byte[] key = keyInfo.next().value();
+			sha1.update(key, 1, key.length - 1);
+			byte[] keyHash = sha1.digest();
+			byte[] sha1Id = der(0x30, new byte[] { 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00 });
+			return der(0x30, sha1Id, der(0x04, nameHash), der(0x04, keyHash),
+					der(0x02, cert.getSerialNumber().toByteArray()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Checks the response is a successful one for the certificate, signed by
+	 * its issuer or by a responder the issuer delegated to (RFC 6960 4.2.2.2).
+	 *
+	 * @return time the response may be used until
+	 * @throws IOException
+	 *             when the response can't be used
+	 */
+	private long check(byte[] encoded, byte[] certId, X509Certificate issuer) throws IOException {
+		Der ocspResponse = new Der(encoded).next();
+		if (ocspResponse.tag() != 0x0a)
+			throw new IOException("Not an OCSP response");
+		byte[] status = ocspResponse.next().value();
+		if (status.length != 1 || status[0] != 0 || !ocspResponse.hasMore())
+			throw new IOException("OCSP response status " + (status.length == 1 ? status[0] : -1));
+		// [0] responseBytes: type, BasicOCSPResponse in an OCTET STRING
+		Der responseBytes = ocspResponse.next().next();
+		if (!Arrays.equals(responseBytes.next().value(), ID_PKIX_OCSP_BASIC))
+			throw new IOException("Not a basic OCSP response");
+		Der basic = new Der(responseBytes.next().value()).next();
+		byte[] tbsEncoded = basic.nextEncoded();
+		Der algorithm = basic.next();
+		byte[] signature = basic.next().value();
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		if (basic.hasMore() && basic.tag() == 0xa0) {
+			Der encodedCerts = basic.next().next();
+			try {
+				CertificateFactory factory = CertificateFactory.getInstance("X.509");
+				while (encodedCerts.hasMore()) {
+					certs.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(encodedCerts
+							.nextEncoded())));
+				}
+			} catch (CertificateException e) {
+				throw new IOException("Bad certificate in OCSP response", e);
+			}
+		}
+		// BIT STRING, no unused bits
+		checkSignature(tbsEncoded, algorithm, Arrays.copyOfRange(signature, 1, signature.length), issuer, certs);
+
+		Der tbs = new Der(tbsEncoded).next();
+		if (tbs.tag() == 0xa0)
+			tbs.next(); // version
+		tbs.next(); // responderID
+		tbs.next(); // producedAt
+		Der singles = tbs.next();
+		while (singles.hasMore()) {
+			Der single = singles.next();
+			boolean requested = sameCertId(single.next(), certId);
+			single.next(); // certStatus
+			long thisUpdate = time(single.next());
+			if (!requested)
+				continue;
+			if (single.hasMore() && single.tag() == 0xa0)
+				return time(single.next().next());
+			return thisUpdate + NO_NEXT_UPDATE_TTL;
+		}
+		throw new IOException("OCSP response for another certificate");
+	}
+
+	private void checkSignature(byte[] tbs, Der algorithm, byte[] signature, X509Certificate issuer,
+			List<X509Certificate> certs) throws IOException {
+		String oid = oid(algorithm.next().value());
+		byte[] params = algorithm.hasMore() ? algorithm.nextEncoded() : null;
+		if (verify(tbs, oid, params, signature, issuer.getPublicKey()))
+			return;
+		for (X509Certificate cert : certs) {
+			try {
+				List<String> usage = cert.getExtendedKeyUsage();
+				if (usage == null || !usage.contains(ID_KP_OCSP_SIGNING)
+						|| !cert.getIssuerX500Principal().equals(issuer.getSubjectX500Principal()))
+					continue;
+				cert.verify(issuer.getPublicKey());
+				cert.checkValidity();
+			} catch (GeneralSecurityException e) {
+				log.log(Level.FINE, "Not a responder certificate of the issuer", e);
+				continue;
+			}
+			if (verify(tbs, oid, params, signature, cert.getPublicKey()))
+				return;
+		}
+		throw new IOException("OCSP response not signed by the issuer or its responder");
+	}
+
+	/**
+	 * Removes expired responses, and all when there are still too many.
+	 */
+	private void evict(long now) {
+		for (Iterator<Response> i = responses.values().iterator(); i.hasNext();) {
+			if (i.next().expires <= now)
+				i.remove();
+		}
+		if (responses.size() >= maxEntries)
+			responses.clear();
+	}
+
+	/**
+	 * Sends the request to the responder. May be overridden, e.g. by a stub
+	 * responder in tests.
+	 *
+	 * @return DER encoded OCSPResponse
+	 */
+	protected byte[] fetch(URI responder, byte[] request) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) responder.toURL().openConnection();
+		con.setConnectTimeout(timeout);
+		con.setReadTimeout(timeout);
+		con.setDoOutput(true);
+		con.setRequestMethod("POST");
+		con.setRequestProperty("Content-Type", "application/ocsp-request");
+		con.setFixedLengthStreamingMode(request.length);
+		OutputStream out = con.getOutputStream();
+		try {
+			out.write(request);
+		} finally {
+			out.close();
+		}
+		if (con.getResponseCode() != HttpURLConnection.HTTP_OK)
+			throw new IOException("OCSP responder " + responder + " returned " + con.getResponseCode());
+		InputStream in = con.getInputStream();
+		try {
+			return readFully(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private File file(String key) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return new File(directory, TrustContext.toHex(md.digest(key.getBytes("UTF-8"))) + SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns response for the certificate, from the cache or the responder.
+	 *
+	 * @return DER encoded OCSPResponse
+	 * @throws IOException
+	 *             when the responder can't be reached, the response can't be
+	 *             used or a request for the certificate failed within
+	 *             {@link #FAILURE_TTL}
+	 */
+	public byte[] get(X509Certificate cert, final X509Certificate issuer, final URI responder) throws IOException {
+		final byte[] certId = certId(cert, issuer);
+		final String key = responder + " " + TrustContext.toHex(certId);
+		long now = System.currentTimeMillis();
+
+		Response response = responses.get(key);
+		if (response != null && response.expires > now)
+			return response.encoded;
+		Long failedUntil = failures.get(key);
+		if (failedUntil != null) {
+			if (failedUntil > now)
+				throw new IOException("OCSP request to " + responder + " failed recently");
+			failures.remove(key, failedUntil);
+		}
+
+		FutureTask<Response> task = new FutureTask<Response>(new Callable<Response>() {
+			@Override
+			public Response call() throws Exception {
+				try {
+					return load(key, responder, certId, issuer);
+				} catch (IOException e) {
+					if (failures.size() >= maxEntries)
+						failures.clear();
+					failures.put(key, System.currentTimeMillis() + FAILURE_TTL);
+					throw e;
+				}
+			}
+		});
+		FutureTask<Response> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+		} else {
+			task = running;
+		}
+
+		try {
+			response = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		if (response.expires > now) {
+			if (responses.size() >= maxEntries)
+				evict(now);
+			responses.put(key, response);
+		}
+		return response.encoded;
+	}
+
+	/**
+	 * @return connect and read timeout of the requests, in milliseconds
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Reads the response from the cache directory or requests it from the
+	 * responder.
+	 */
+	private Response load(String key, URI responder, byte[] certId, X509Certificate issuer) throws IOException {
+		long now = System.currentTimeMillis();
+		if (directory != null) {
+			File f = file(key);
+			if (f.exists()) {
+				try {
+					InputStream in = new FileInputStream(f);
+					byte[] encoded;
+					try {
+						encoded = readFully(in);
+					} finally {
+						in.close();
+					}
+					Response stored = new Response(encoded, check(encoded, certId, issuer));
+					if (stored.expires > now) {
+						log.fine("Using stored OCSP response");
+						return stored;
+					}
+				} catch (IOException e) {
+					log.log(Level.FINE, "Invalid stored OCSP response " + f, e);
+				}
+			}
+		}
+
+		if (log.isLoggable(Level.FINE))
+			log.fine("Requesting OCSP response from " + responder);
+		// OCSPRequest: TBSRequest with a single Request for the CertID
+		byte[] request = der(0x30, der(0x30, der(0x30, der(0x30, certId))));
+		byte[] encoded = fetch(responder, request);
+		Response response = new Response(encoded, check(encoded, certId, issuer));
+		if (directory != null && response.expires > now)
+			store(key, encoded);
+		return response;
+	}
+
+	private byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Sets the connect and read timeout of the requests, 15 seconds by
+	 * default.
+	 */
+	public void setTimeout(int millis) {
+		this.timeout = millis;
+	}
+
+	private void store(String key, byte[] encoded) {
+		try {
+			File tmp = File.createTempFile("ocsp", ".tmp", directory);
+			try {
+				OutputStream out = new FileOutputStream(tmp);
+				try {
+					out.write(encoded);
+				} finally {
+					out.close();
+				}
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "OCSP response can't be stored", e);
+		}
+	}
+
+}
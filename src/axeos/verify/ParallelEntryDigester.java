@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSigner;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads (and so checks digests of) all entries of a jar file with several
+ * threads. Each thread works on its own {@link JarFile} instance, as the JDK
+ * jar verifier state must not be shared between threads.
+ */
+class ParallelEntryDigester implements EntryDigester {
+
+	private final CodeSigner[][] codeSigners;
+
+	private final AtomicInteger firstInvalid = new AtomicInteger(Integer.MAX_VALUE);
+
+	private final String jarName;
+
+	private final Logger log = Logger.getLogger(ParallelEntryDigester.class.getName());
+
+	private final String[] names;
+
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	private final int parallelism;
+
+	ParallelEntryDigester(JarFile jarFile, int parallelism) {
+		this.jarName = jarFile.getName();
+		this.parallelism = parallelism;
+
+		List<String> l = new ArrayList<String>();
+		Enumeration<JarEntry> entriesEnum = jarFile.entries();
+		while (entriesEnum.hasMoreElements()) {
+			l.add(entriesEnum.nextElement().getName());
+		}
+		this.names = l.toArray(new String[l.size()]);
+		this.codeSigners = new CodeSigner[names.length][];
+	}
+
+	/**
+	 * Reads all the entries. Reading stops early when an entry with invalid
+	 * signature is found, but entries preceding it are always read, so the
+	 * outcome does not depend on thread scheduling.
+	 */
+	@Override
+	public void digest() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < parallelism; i++) {
+				workers.add(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						digestEntries();
+						return null;
+					}
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(workers)) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void digestEntries() throws IOException {
+		byte[] buffer = new byte[8192];
+		JarFile jarFile = new JarFile(jarName);
+		try {
+			int index;
+			while ((index = nextIndex.getAndIncrement()) < names.length && index < firstInvalid.get()) {
+				JarEntry entry = jarFile.getJarEntry(names[index]);
+				InputStream is = null;
+				try {
+					is = jarFile.getInputStream(entry);
+					while ((is.read(buffer, 0, buffer.length)) != -1)
+						;
+				} catch (java.lang.SecurityException e) {
+					if (log.isLoggable(Level.FINEST))
+						log.log(Level.FINEST, "  Invalid signature of " + names[index], e);
+					int current;
+					while (index < (current = firstInvalid.get()) && !firstInvalid.compareAndSet(current, index))
+						;
+					continue;
+				} finally {
+					if (is != null) {
+						is.close();
+					}
+				}
+				codeSigners[index] = entry.getCodeSigners();
+			}
+		} finally {
+			jarFile.close();
+		}
+	}
+
+	@Override
+	public CodeSigner[] getCodeSigners(int index) {
+		return codeSigners[index];
+	}
+
+	@Override
+	public int getFirstInvalid() {
+		return firstInvalid.get();
+	}
+
+}
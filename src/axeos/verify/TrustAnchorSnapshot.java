@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trusted certificates of a keystore, stored in a compact file that is read
+ * without decoding the certificates. A certificate is decoded only when a
+ * path to validate may chain to it, found by the subject and subject key
+ * identifier indexes, so the start up cost does not grow with the size of
+ * the keystore.
+ * <p>
+ * The snapshot keeps the hash of the keystore file it was compiled from, see
+ * {@link #isCompiledFrom(File)}.
+ * </p>
+ */
+public final class TrustAnchorSnapshot {
+
+	private static final int MAGIC = 0x564a5441;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * @return key identifier of the authority key identifier extension, or
+	 *         <code>null</code>
+	 */
+	private static byte[] authorityKeyId(X509Certificate cert) {
+		byte[] ext = cert.getExtensionValue("2.5.29.35");
+		if (ext == null)
+			return null;
+		// OCTET STRING { SEQUENCE { [0] keyIdentifier, ... } }
+		try {
+			byte[] seq = contents(contents(ext, 0), 0);
+			return seq.length > 0 && seq[0] == (byte) 0x80 ? contents(seq, 0) : null;
+		} catch (IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compiles the trusted certificate entries of the keystore.
+	 */
+	public static TrustAnchorSnapshot compile(KeyStore keystore) throws KeyStoreException {
+		return compile(keystore, new byte[32]);
+	}
+
+	/**
+	 * Compiles the trusted certificate entries of the keystore loaded from the
+	 * file.
+	 */
+	public static TrustAnchorSnapshot compile(KeyStore keystore, File keystoreFile) throws KeyStoreException,
+			IOException {
+		return compile(keystore, hash(keystoreFile));
+	}
+
+	private static TrustAnchorSnapshot compile(KeyStore keystore, byte[] sourceHash) throws KeyStoreException {
+		List<String> aliases = Collections.list(keystore.aliases());
+		Collections.sort(aliases);
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		List<String> certAliases = new ArrayList<String>();
+		for (String alias : aliases) {
+			Certificate cert = keystore.getCertificate(alias);
+			if (cert instanceof X509Certificate && keystore.isCertificateEntry(alias)) {
+				certAliases.add(alias);
+				certs.add((X509Certificate) cert);
+			}
+		}
+
+		int n = certs.size();
+		String[] a = certAliases.toArray(new String[n]);
+		byte[][] encoded = new byte[n][];
+		byte[][] subjects = new byte[n][];
+		byte[][] keyIds = new byte[n][];
+		TrustAnchor[] anchors = new TrustAnchor[n];
+		try {
+			for (int i = 0; i < n; i++) {
+				X509Certificate cert = certs.get(i);
+				encoded[i] = cert.getEncoded();
+				subjects[i] = cert.getSubjectX500Principal().getEncoded();
+				keyIds[i] = subjectKeyId(cert);
+				anchors[i] = new TrustAnchor(cert, null);
+			}
+		} catch (CertificateEncodingException e) {
+			throw new KeyStoreException("Trusted certificate can't be encoded", e);
+		}
+		return new TrustAnchorSnapshot(sourceHash, a, subjects, keyIds, encoded, anchors);
+	}
+
+	/**
+	 * @return contents of the DER element at the position
+	 */
+	private static byte[] contents(byte[] der, int pos) {
+		int length = der[pos + 1] & 0xff;
+		int start = pos + 2;
+		if (length > 0x7f) {
+			int bytes = length & 0x7f;
+			length = 0;
+			for (int i = 0; i < bytes; i++) {
+				length = (length << 8) | (der[start++] & 0xff);
+			}
+		}
+		if (length < 0 || start + length > der.length)
+			throw new IndexOutOfBoundsException("Bad DER length");
+		return Arrays.copyOfRange(der, start, start + length);
+	}
+
+	private static byte[] hash(File file) throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Reads snapshot written by {@link #write(File)}.
+	 */
+	public static TrustAnchorSnapshot read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a trust anchor snapshot: " + file);
+			byte[] sourceHash = new byte[32];
+			in.readFully(sourceHash);
+			int n = in.readInt();
+			String[] aliases = new String[n];
+			byte[][] subjects = new byte[n][];
+			byte[][] keyIds = new byte[n][];
+			byte[][] encoded = new byte[n][];
+			for (int i = 0; i < n; i++) {
+				aliases[i] = in.readUTF();
+				subjects[i] = readBytes(in);
+				keyIds[i] = readBytes(in);
+				encoded[i] = readBytes(in);
+			}
+			return new TrustAnchorSnapshot(sourceHash, aliases, subjects, keyIds, encoded, new TrustAnchor[n]);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return contents of the subject key identifier extension, or
+	 *         <code>null</code>
+	 */
+	private static byte[] subjectKeyId(X509Certificate cert) {
+		byte[] ext = cert.getExtensionValue("2.5.29.14");
+		if (ext == null)
+			return null;
+		// OCTET STRING { OCTET STRING keyIdentifier }
+		try {
+			return contents(contents(ext, 0), 0);
+		} catch (IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private final String[] aliases;
+
+	private Set<TrustAnchor> all;
+
+	/**
+	 * Decoded anchors, <code>null</code> until needed.
+	 */
+	private final TrustAnchor[] anchors;
+
+	private final Map<ByteBuffer, List<Integer>> byKeyId = new HashMap<ByteBuffer, List<Integer>>();
+
+	private final Map<ByteBuffer, List<Integer>> bySubject = new HashMap<ByteBuffer, List<Integer>>();
+
+	private final byte[][] encoded;
+
+	private final byte[][] keyIds;
+
+	private final byte[] sourceHash;
+
+	private final byte[][] subjects;
+
+	private TrustAnchorSnapshot(byte[] sourceHash, String[] aliases, byte[][] subjects, byte[][] keyIds,
+			byte[][] encoded, TrustAnchor[] anchors) {
+		this.sourceHash = sourceHash;
+		this.aliases = aliases;
+		this.subjects = subjects;
+		this.keyIds = keyIds;
+		this.encoded = encoded;
+		this.anchors = anchors;
+		for (int i = 0; i < encoded.length; i++) {
+			index(bySubject, subjects[i], i);
+			if (keyIds[i] != null)
+				index(byKeyId, keyIds[i], i);
+		}
+	}
+
+	synchronized TrustAnchor anchor(int i) throws CertificateException {
+		if (anchors[i] == null) {
+			X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+					new ByteArrayInputStream(encoded[i]));
+			anchors[i] = new TrustAnchor(cert, null);
+		}
+		return anchors[i];
+	}
+
+	/**
+	 * @return all the anchors, decoding those not decoded yet
+	 */
+	public synchronized Set<TrustAnchor> getAnchors() throws CertificateException {
+		if (all == null) {
+			Set<TrustAnchor> set = new HashSet<TrustAnchor>();
+			for (int i = 0; i < anchors.length; i++) {
+				set.add(anchor(i));
+			}
+			all = Collections.unmodifiableSet(set);
+		}
+		return all;
+	}
+
+	/**
+	 * Returns digest of the aliases and certificates, independent of the
+	 * keystore type and password.
+	 */
+	public byte[] getDigest() throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		try {
+			for (int i = 0; i < encoded.length; i++) {
+				md.update(aliases[i].getBytes("UTF-8"));
+				md.update(encoded[i]);
+			}
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return md.digest();
+	}
+
+	private void index(Map<ByteBuffer, List<Integer>> map, byte[] key, int i) {
+		List<Integer> list = map.get(ByteBuffer.wrap(key));
+		if (list == null) {
+			list = new ArrayList<Integer>(1);
+			map.put(ByteBuffer.wrap(key), list);
+		}
+		list.add(i);
+	}
+
+	/**
+	 * @return <code>true</code> if the snapshot was compiled from the
+	 *         keystore file with its current content
+	 */
+	public boolean isCompiledFrom(File keystoreFile) throws IOException {
+		return Arrays.equals(sourceHash, hash(keystoreFile));
+	}
+
+	/**
+	 * Returns anchors the path may chain to: those with the subject of the
+	 * issuer of its last certificate, or with the key identifier of its
+	 * issuer. All the anchors are returned if none of them matches, so the
+	 * validation fails the same way as with the whole keystore.
+	 *
+	 * @param path
+	 *            path to validate, <code>null</code> for all the anchors
+	 */
+	Set<TrustAnchor> select(CertPath path) throws CertificateException {
+		if (path == null)
+			return getAnchors();
+		List<? extends Certificate> certs = path.getCertificates();
+		if (certs.isEmpty() || !(certs.get(certs.size() - 1) instanceof X509Certificate))
+			return getAnchors();
+		X509Certificate last = (X509Certificate) certs.get(certs.size() - 1);
+		Set<Integer> found = new HashSet<Integer>();
+		List<Integer> list = bySubject.get(ByteBuffer.wrap(last.getIssuerX500Principal().getEncoded()));
+		if (list != null)
+			found.addAll(list);
+		byte[] keyId = authorityKeyId(last);
+		list = keyId != null ? byKeyId.get(ByteBuffer.wrap(keyId)) : null;
+		if (list != null)
+			found.addAll(list);
+		if (found.isEmpty())
+			return getAnchors();
+		Set<TrustAnchor> set = new HashSet<TrustAnchor>();
+		for (int i : found) {
+			set.add(anchor(i));
+		}
+		return set;
+	}
+
+	public int size() {
+		return encoded.length;
+	}
+
+	/**
+	 * Writes the snapshot to the file, replacing it atomically.
+	 */
+	public void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.write(sourceHash);
+				out.writeInt(encoded.length);
+				for (int i = 0; i < encoded.length; i++) {
+					out.writeUTF(aliases[i]);
+					writeBytes(out, subjects[i]);
+					writeBytes(out, keyIds[i]);
+					writeBytes(out, encoded[i]);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.PKIXRevocationChecker;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Trust anchors, revocation data and settings used to validate signer
+ * certificate paths. Instances are immutable, so one context may be built
+ * once and shared by any number of (concurrent) jar verifications.
+ */
+public final class TrustContext {
+
+	/**
+	 * Threads of the OCSP prefetch, created on first use.
+	 */
+	private static class OcspPrefetch {
+
+		static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "verify-jar-ocsp");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static final Logger log = Logger.getLogger(TrustContext.class.getName());
+
+	private static long[] nextUpdates(Collection<? extends CRL> crls, List<CrlStore.Crl> storeCrls) {
+		List<Long> nextUpdates = new ArrayList<Long>();
+		if (crls != null) {
+			for (CRL crl : crls) {
+				if (crl instanceof X509CRL && ((X509CRL) crl).getNextUpdate() != null)
+					nextUpdates.add(((X509CRL) crl).getNextUpdate().getTime());
+			}
+		}
+		if (storeCrls != null) {
+			for (CrlStore.Crl crl : storeCrls) {
+				if (crl.nextUpdate >= 0)
+					nextUpdates.add(crl.nextUpdate);
+			}
+		}
+		long[] result = new long[nextUpdates.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = nextUpdates.get(i);
+		}
+		return result;
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private final TrustAnchorSnapshot anchors;
+
+	// next updates of all the CRLs, after which the checks may fail
+	private final long[] crlNextUpdates;
+
+	private final List<CrlStore.Crl> crls;
+
+	private final String fingerprint;
+
+	private final boolean hasCRLs;
+
+	private final OcspResponseCache ocspCache;
+
+	private final URI ocspResponder;
+
+	private final PKIXParameters params;
+
+	private final boolean useOCSP;
+
+	private final Date verificationDate;
+
+	public TrustContext(KeyStore keystore, Collection<? extends CRL> crls, boolean useOCSP, String ocspResponderURL,
+			Date verificationDate) throws KeyStoreException, InvalidAlgorithmParameterException,
+			NoSuchAlgorithmException {
+		this(keystore, crls, useOCSP, ocspResponderURL, verificationDate, null);
+	}
+
+	/**
+	 * Creates context checking revocation by the CRLs of the store only. The
+	 * store must be loaded.
+	 */
+	public TrustContext(KeyStore keystore, CrlStore crlStore, Date verificationDate) throws KeyStoreException,
+			InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		this(TrustAnchorSnapshot.compile(keystore), null, crlStore, false, null, verificationDate, null);
+	}
+
+	/**
+	 * @param ocspCache
+	 *            cache the OCSP responses are taken from, or <code>null</code>
+	 *            to let the JDK request them on every validation
+	 */
+	public TrustContext(KeyStore keystore, Collection<? extends CRL> crls, boolean useOCSP, String ocspResponderURL,
+			Date verificationDate, OcspResponseCache ocspCache) throws KeyStoreException,
+			InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		this(TrustAnchorSnapshot.compile(keystore), crls, null, useOCSP, ocspResponderURL, verificationDate,
+				ocspCache);
+	}
+
+	/**
+	 * Creates context checking revocation by the CRLs of the store only. The
+	 * store must be loaded.
+	 */
+	public TrustContext(TrustAnchorSnapshot anchors, CrlStore crlStore, Date verificationDate)
+			throws KeyStoreException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		this(anchors, null, crlStore, false, null, verificationDate, null);
+	}
+
+	/**
+	 * Creates context with the trust anchors of the snapshot, they are decoded
+	 * when a path is validated.
+	 */
+	public TrustContext(TrustAnchorSnapshot anchors, Collection<? extends CRL> crls, boolean useOCSP,
+			String ocspResponderURL, Date verificationDate, OcspResponseCache ocspCache) throws KeyStoreException,
+			InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		this(anchors, crls, null, useOCSP, ocspResponderURL, verificationDate, ocspCache);
+	}
+
+	private TrustContext(TrustAnchorSnapshot anchors, Collection<? extends CRL> crls, CrlStore crlStore,
+			boolean useOCSP, String ocspResponderURL, Date verificationDate, OcspResponseCache ocspCache)
+			throws KeyStoreException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		this.anchors = anchors;
+		this.crls = crlStore != null ? crlStore.getCrls() : null;
+		this.useOCSP = useOCSP;
+		this.ocspCache = useOCSP ? ocspCache : null;
+		this.ocspResponder = ocspResponderURL == null ? null : URI.create(ocspResponderURL);
+		this.verificationDate = verificationDate == null ? null : new Date(verificationDate.getTime());
+		this.crlNextUpdates = nextUpdates(crls, this.crls);
+
+		if (anchors.size() == 0)
+			throw new InvalidAlgorithmParameterException("the trustAnchors parameter must be non-empty");
+		// the anchors of each path are set by getParameters()
+		PKIXParameters params;
+		try {
+			params = new PKIXParameters(Collections.singleton(anchors.anchor(0)));
+		} catch (CertificateException e) {
+			throw new KeyStoreException("Trusted certificate can't be decoded", e);
+		}
+		params.setDate(this.verificationDate);
+
+		hasCRLs = crls != null && !crls.isEmpty();
+		params.setRevocationEnabled(useOCSP || hasCRLs || crlStore != null);
+
+		if (hasCRLs) {
+			CertStore certStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(
+					new ArrayList<CRL>(crls)));
+			params.addCertStore(certStore);
+		}
+
+		// revocation checking is configured here and not with the global
+		// "ocsp.enable" security property, so contexts do not affect each other
+		if (crlStore != null) {
+			params.addCertPathChecker(CrlStore.checker(this.crls, params.getTrustAnchors(), this.verificationDate));
+		} else if (useOCSP || hasCRLs) {
+			PKIXRevocationChecker checker = (PKIXRevocationChecker) CertPathValidator.getInstance("PKIX")
+					.getRevocationChecker();
+			if (useOCSP) {
+				if (ocspResponder != null)
+					checker.setOcspResponder(ocspResponder);
+			} else {
+				checker.setOptions(EnumSet.of(PKIXRevocationChecker.Option.PREFER_CRLS,
+						PKIXRevocationChecker.Option.NO_FALLBACK));
+			}
+			params.addCertPathChecker(checker);
+		}
+
+		this.params = params;
+		this.fingerprint = fingerprint(anchors, crls, crlStore, ocspResponderURL);
+	}
+
+	/**
+	 * Passes the OCSP responses of the path certificates from the cache to the
+	 * revocation checker of the parameters. Certificates without a responder
+	 * are left to the checker. When a response is not available, the checker
+	 * would request it again: the validation fails at once, or with CRLs the
+	 * checker tries them first.
+	 */
+	private void addOcspResponses(CertPath path, PKIXParameters pathParams) throws CertPathValidatorException {
+		List<? extends Certificate> certs = path.getCertificates();
+		Map<X509Certificate, byte[]> responses = new HashMap<X509Certificate, byte[]>();
+		boolean failed = false;
+		for (int i = 0; i < certs.size(); i++) {
+			if (!(certs.get(i) instanceof X509Certificate))
+				continue;
+			X509Certificate cert = (X509Certificate) certs.get(i);
+			X509Certificate issuer = issuer(certs, i, pathParams);
+			URI responder = ocspResponder != null ? ocspResponder : OcspResponseCache.responderURI(cert);
+			if (issuer == null || responder == null)
+				continue;
+			try {
+				responses.put(cert, ocspCache.get(cert, issuer, responder));
+			} catch (IOException e) {
+				if (!hasCRLs)
+					throw new CertPathValidatorException("OCSP response not available: " + e.getMessage(), e,
+							path, i, CertPathValidatorException.BasicReason.UNDETERMINED_REVOCATION_STATUS);
+				log.log(Level.FINE, "OCSP response not available, CRLs are checked first", e);
+				failed = true;
+			}
+		}
+		if (responses.isEmpty() && !failed)
+			return;
+
+		List<PKIXCertPathChecker> checkers = pathParams.getCertPathCheckers();
+		for (PKIXCertPathChecker checker : checkers) {
+			if (checker instanceof PKIXRevocationChecker) {
+				PKIXRevocationChecker revocationChecker = (PKIXRevocationChecker) checker;
+				revocationChecker.setOcspResponses(responses);
+				if (failed)
+					revocationChecker.setOptions(EnumSet.of(PKIXRevocationChecker.Option.PREFER_CRLS));
+			}
+		}
+		pathParams.setCertPathCheckers(checkers);
+	}
+
+	private String fingerprint(TrustAnchorSnapshot anchors, Collection<? extends CRL> crls, CrlStore crlStore,
+			String ocspResponderURL) throws KeyStoreException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		try {
+			md.update(anchors.getDigest());
+			if (crls != null) {
+				for (CRL crl : crls) {
+					md.update(crl instanceof X509CRL ? ((X509CRL) crl).getEncoded() : crl.toString().getBytes("UTF-8"));
+				}
+			}
+			if (crlStore != null)
+				md.update(crlStore.getDigest());
+			md.update((useOCSP + " " + ocspResponderURL + " "
+					+ (verificationDate == null ? null : verificationDate.getTime())).getBytes("UTF-8"));
+		} catch (CRLException e) {
+			throw new KeyStoreException("CRL can't be encoded", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * @return certificates of the anchors the path may chain to
+	 */
+	List<X509Certificate> getAnchorCertificates(CertPath path) throws CertificateException {
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		for (TrustAnchor anchor : anchors.select(path)) {
+			if (anchor.getTrustedCert() != null)
+				certs.add(anchor.getTrustedCert());
+		}
+		return certs;
+	}
+
+	/**
+	 * Returns digest of everything the context was built from: trusted
+	 * certificates, CRLs, OCSP settings and the verification date.
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return earliest next update of the CRLs after the time,
+	 *         {@link Long#MAX_VALUE} if there is none
+	 */
+	long getNextCrlUpdate(long now) {
+		long next = Long.MAX_VALUE;
+		for (long nextUpdate : crlNextUpdates) {
+			if (nextUpdate > now)
+				next = Math.min(next, nextUpdate);
+		}
+		return next;
+	}
+
+	/**
+	 * Returns a private copy of the validation parameters.
+	 *
+	 * @param date
+	 *            validation date, or <code>null</code> for the verification
+	 *            date of this context
+	 */
+	public PKIXParameters getParameters(Date date) {
+		try {
+			return getParameters(null, date);
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a private copy of the validation parameters with the trust
+	 * anchors the path may chain to.
+	 *
+	 * @param path
+	 *            path to validate, <code>null</code> for all the anchors
+	 */
+	PKIXParameters getParameters(CertPath path, Date date) throws InvalidAlgorithmParameterException {
+		PKIXParameters p = (PKIXParameters) params.clone();
+		try {
+			p.setTrustAnchors(anchors.select(path));
+		} catch (CertificateException e) {
+			throw new InvalidAlgorithmParameterException("Trusted certificate can't be decoded", e);
+		}
+		if (date != null)
+			p.setDate(date);
+		if (crls != null) {
+			// the CRL checker has its own copy of the date and anchors
+			p.setCertPathCheckers(Collections.<PKIXCertPathChecker> singletonList(CrlStore.checker(crls,
+					p.getTrustAnchors(), p.getDate())));
+		}
+		return p;
+	}
+
+	public Date getVerificationDate() {
+		return verificationDate == null ? null : new Date(verificationDate.getTime());
+	}
+
+	/**
+	 * @return issuer of the certificate: the next one in the path or a trust
+	 *         anchor, <code>null</code> if not known
+	 */
+	private X509Certificate issuer(List<? extends Certificate> certs, int index, PKIXParameters pathParams) {
+		X509Certificate cert = (X509Certificate) certs.get(index);
+		if (index + 1 < certs.size())
+			return (X509Certificate) certs.get(index + 1);
+		for (TrustAnchor anchor : pathParams.getTrustAnchors()) {
+			X509Certificate trusted = anchor.getTrustedCert();
+			if (trusted != null && trusted.getSubjectX500Principal().equals(cert.getIssuerX500Principal()))
+				return trusted;
+		}
+		return null;
+	}
+
+	/**
+	 * Requests the OCSP responses of all distinct certificates of the paths
+	 * at the same time, so the following validations of the paths take them
+	 * from the cache instead of waiting for each request in turn. Waits at
+	 * most for the time one request may take (connect and read timeout of the
+	 * cache); requests not answered by then are still waited for by the
+	 * validations, failed ones fail them, see {@link OcspResponseCache}.
+	 */
+	void prefetchOcspResponses(Collection<CertPath> paths) {
+		if (ocspCache == null)
+			return;
+		Set<X509Certificate> seen = new LinkedHashSet<X509Certificate>();
+		List<Callable<byte[]>> requests = new ArrayList<Callable<byte[]>>();
+		for (CertPath path : paths) {
+			PKIXParameters pathParams;
+			try {
+				pathParams = getParameters(path, null);
+			} catch (InvalidAlgorithmParameterException e) {
+				continue;
+			}
+			List<? extends Certificate> certs = path.getCertificates();
+			for (int i = 0; i < certs.size(); i++) {
+				if (!(certs.get(i) instanceof X509Certificate) || !seen.add((X509Certificate) certs.get(i)))
+					continue;
+				final X509Certificate cert = (X509Certificate) certs.get(i);
+				final X509Certificate issuer = issuer(certs, i, pathParams);
+				final URI responder = ocspResponder != null ? ocspResponder : OcspResponseCache.responderURI(cert);
+				if (issuer == null || responder == null)
+					continue;
+				requests.add(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return ocspCache.get(cert, issuer, responder);
+					}
+				});
+			}
+		}
+		// a single request is made by the validation as well
+		if (requests.size() < 2)
+			return;
+		if (log.isLoggable(Level.FINE))
+			log.fine("Prefetching " + requests.size() + " OCSP responses");
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+		for (Callable<byte[]> request : requests) {
+			futures.add(OcspPrefetch.executor.submit(request));
+		}
+		// not cancelled on timeout, the cache shares the request with the validation
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2L * ocspCache.getTimeout());
+		for (Future<byte[]> future : futures) {
+			try {
+				future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				log.log(Level.FINE, "OCSP response not available", e.getCause());
+			} catch (TimeoutException e) {
+				log.fine("OCSP prefetch deadline passed");
+				return;
+			}
+		}
+	}
+
+	public boolean isUseOCSP() {
+		return useOCSP;
+	}
+
+	public PKIXCertPathValidatorResult validate(CertPath path, Date date) throws NoSuchAlgorithmException,
+			CertPathValidatorException, InvalidAlgorithmParameterException {
+		return validate(path, getParameters(path, date));
+	}
+
+	PKIXCertPathValidatorResult validate(CertPath path, PKIXParameters pathParams) throws NoSuchAlgorithmException,
+			CertPathValidatorException, InvalidAlgorithmParameterException {
+		if (ocspCache != null)
+			addOcspResponses(path, pathParams);
+		// CertPathValidator instances are not guaranteed to be thread safe
+		CertPathValidator validator = CertPathValidator.getInstance("PKIX");
+		return (PKIXCertPathValidatorResult) validator.validate(path, pathParams);
+	}
+
+}
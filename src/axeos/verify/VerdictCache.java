@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSigner;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Timestamp;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import axeos.verify.exceptions.ExpiredException;
+import axeos.verify.exceptions.InvalidException;
+import axeos.verify.exceptions.NotSignedException;
+import axeos.verify.exceptions.NotTrustedException;
+import axeos.verify.exceptions.UnsignedEntriesException;
+import axeos.verify.exceptions.ValidatorException;
+
+/**
+ * On-disk cache of verification results. Results are stored under a key made
+ * of the jar content digest and the trust configuration, so a changed jar or
+ * changed trust material is simply a cache miss. A result is served only
+ * until the first certificate of the signer or timestamp chains, or of their
+ * trust anchors, expires, or a CRL is due to be updated. Results checked by
+ * OCSP, or with a certificate not valid yet, are not stored.
+ * <p>
+ * Entries are written to a temporary file and atomically renamed, so many
+ * processes may share one cache directory.
+ * </p>
+ */
+public class VerdictCache {
+
+	/**
+	 * Cached result of a jar verification.
+	 */
+	static class Verdict {
+
+		final ValidatorException failure;
+
+		final List<String> warnings;
+
+		Verdict(ValidatorException failure, List<String> warnings) {
+			this.failure = failure;
+			this.warnings = warnings;
+		}
+	}
+
+	private static final String SUFFIX = ".verdict";
+
+	private static ValidatorException forExitCode(int code) {
+		switch (code) {
+		case 1:
+			return new UnsignedEntriesException();
+		case 2:
+			return new NotTrustedException();
+		case 3:
+			return new ExpiredException();
+		case 4:
+			return new NotSignedException();
+		case 5:
+			return new InvalidException();
+		default:
+			return null;
+		}
+	}
+
+	private final File directory;
+
+	private final Logger log = Logger.getLogger(VerdictCache.class.getName());
+
+	private final int maxEntries;
+
+	public VerdictCache(File directory, int maxEntries) {
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+		directory.mkdirs();
+	}
+
+	/**
+	 * @return time the first certificate used by the signers, or a trust
+	 *         anchor of their paths, expires or a CRL is due to be updated, of
+	 *         those not passed yet: the result already reflects the passed
+	 *         ones, e.g. of a signer time stamped while it was valid;
+	 *         <code>now</code> when a certificate is not valid yet
+	 */
+	static long earliestExpiry(Collection<CodeSigner> signers, TrustContext trust, long now) {
+		long expiry = trust.getNextCrlUpdate(now);
+		List<CertPath> paths = new ArrayList<CertPath>();
+		for (CodeSigner signer : signers) {
+			paths.add(signer.getSignerCertPath());
+			Timestamp timestamp = signer.getTimestamp();
+			if (timestamp != null)
+				paths.add(timestamp.getSignerCertPath());
+		}
+		for (CertPath path : paths) {
+			List<Certificate> certs = new ArrayList<Certificate>(path.getCertificates());
+			try {
+				certs.addAll(trust.getAnchorCertificates(path));
+			} catch (CertificateException e) {
+				return now;
+			}
+			for (Certificate cert : certs) {
+				if (!(cert instanceof X509Certificate))
+					continue;
+				// the result changes once the certificate becomes valid
+				if (((X509Certificate) cert).getNotBefore().getTime() > now)
+					return now;
+				long notAfter = ((X509Certificate) cert).getNotAfter().getTime();
+				if (notAfter > now)
+					expiry = Math.min(expiry, notAfter);
+			}
+		}
+		return expiry;
+	}
+
+	/**
+	 * Removes the least recently used entries when there are too many.
+	 */
+	private void evict() {
+		File[] entries = directory.listFiles();
+		if (entries == null || entries.length <= maxEntries)
+			return;
+		final long[] lastModified = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			lastModified[i] = entries[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(lastModified[a], lastModified[b]);
+			}
+		});
+		// make some room, so the directory is not scanned for every new entry
+		int toRemove = entries.length - maxEntries + maxEntries / 10;
+		for (int i = 0; i < order.length && toRemove > 0; i++) {
+			File f = entries[order[i]];
+			if (f.getName().endsWith(SUFFIX) && f.delete())
+				toRemove--;
+		}
+	}
+
+	private File file(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return verdict or <code>null</code> if there is no valid entry
+	 */
+	Verdict get(String key) {
+		File f = file(key);
+		Properties p = new Properties();
+		try {
+			InputStream in = new FileInputStream(f);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			if (System.currentTimeMillis() >= Long.parseLong(p.getProperty("expires"))) {
+				log.fine("Cached verdict expired");
+				f.delete();
+				return null;
+			}
+			int code = Integer.parseInt(p.getProperty("code"));
+			List<String> warnings = new ArrayList<String>();
+			String w = p.getProperty("warnings");
+			if (w != null && w.length() > 0)
+				warnings.addAll(Arrays.asList(w.split("\n")));
+			f.setLastModified(System.currentTimeMillis());
+			return new Verdict(forExitCode(code), warnings);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			log.log(Level.FINE, "Invalid cache entry " + f, e);
+			return null;
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Computes cache key of a jar.
+	 *
+	 * @param trustKey
+	 *            identifies everything except the jar content the result
+	 *            depends on
+	 */
+	String key(File jar, String trustKey) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[65536];
+			InputStream in = new FileInputStream(jar);
+			try {
+				int n;
+				while ((n = in.read(buffer)) != -1)
+					md.update(buffer, 0, n);
+			} finally {
+				in.close();
+			}
+			md.update(trustKey.getBytes("UTF-8"));
+			return TrustContext.toHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Stores the result. Only the results defined by the jar itself are
+	 * stored.
+	 *
+	 * @param failure
+	 *            exception thrown by the verification or <code>null</code> if
+	 *            the jar is valid
+	 * @param expires
+	 *            time after which the result must not be used
+	 */
+	void put(String key, ValidatorException failure, Collection<String> warnings, long expires) {
+		if (expires <= System.currentTimeMillis())
+			return;
+		int code = failure == null ? 0 : failure.getExitCode();
+		if (failure != null) {
+			// e.g. trust context errors are not results of the jar
+			ValidatorException expected = forExitCode(code);
+			if (expected == null || expected.getClass() != failure.getClass())
+				return;
+			String msg = expected.getStdErrMessage();
+			if (msg == null ? failure.getStdErrMessage() != null : !msg.equals(failure.getStdErrMessage()))
+				return;
+		}
+
+		StringBuilder w = new StringBuilder();
+		for (String warning : warnings) {
+			if (w.length() > 0)
+				w.append('\n');
+			w.append(warning);
+		}
+
+		Properties p = new Properties();
+		p.setProperty("code", Integer.toString(code));
+		p.setProperty("expires", Long.toString(expires));
+		p.setProperty("warnings", w.toString());
+
+		try {
+			File tmp = File.createTempFile(key, ".tmp", directory);
+			try {
+				OutputStream out = new FileOutputStream(tmp);
+				try {
+					p.store(out, null);
+				} finally {
+					out.close();
+				}
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Verdict can't be stored", e);
+			return;
+		}
+
+		evict();
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the verification phases. They are recorded only
+ * when a recording is running, e.g. with
+ * <code>-XX:StartFlightRecording</code>; otherwise the JVM drops them before
+ * any field is set.
+ * <p>
+ * Loading the first event class initializes Flight Recorder, which takes
+ * longer than verifying a small jar, so the events are created, by the
+ * <code>begin</code> methods, only once it has been started.
+ * </p>
+ */
+final class VerificationEvents {
+
+	@Name("axeos.verify.CrlLoad")
+	@Label("CRL Load")
+	@Category({ "Jar Verification", "Trust" })
+	static class CrlLoad extends Event {
+
+		@Label("CRLs")
+		int crls;
+
+		@Label("File")
+		String file;
+	}
+
+	@Name("axeos.verify.EntryDigest")
+	@Label("Entry Digest")
+	@Description("Reading the entries of a jar and checking their digests, enclosing the path validations of the signers found")
+	@Category({ "Jar Verification", "Entries" })
+	static class EntryDigest extends Event {
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Entries")
+		int entries;
+
+		@Label("Jar")
+		String jar;
+
+		@Label("Reader")
+		@Description("jarfile, parallel, mapped, incremental or stream")
+		String reader;
+	}
+
+	@Name("axeos.verify.JarVerification")
+	@Label("Jar Verification")
+	@Category("Jar Verification")
+	static class JarVerification extends Event {
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Cached")
+		boolean cached;
+
+		@Label("Entries")
+		int entries;
+
+		@Label("Jar")
+		String jar;
+
+		@Label("Result")
+		@Description("Exception class name, or valid")
+		String result;
+
+		@Label("Unsigned Entries")
+		int unsignedEntries;
+	}
+
+	@Name("axeos.verify.KeystoreLoad")
+	@Label("Keystore Load")
+	@Category({ "Jar Verification", "Trust" })
+	static class KeystoreLoad extends Event {
+
+		@Label("Entries")
+		int entries;
+
+		@Label("Keystore")
+		String keystore;
+	}
+
+	@Name("axeos.verify.PathValidation")
+	@Label("Certificate Path Validation")
+	@Description("PKIX validation of a signer or TSA certificate path, including OCSP requests")
+	@Category({ "Jar Verification", "Trust" })
+	static class PathValidation extends Event {
+
+		@Label("OCSP")
+		boolean ocsp;
+
+		@Label("Result")
+		@Description("Exception class name, or valid")
+		String result;
+
+		@Label("Subject")
+		String subject;
+
+		@Label("Timestamp")
+		@Description("Path of a time stamping authority")
+		boolean timestamp;
+	}
+
+	static CrlLoad beginCrlLoad() {
+		if (!FlightRecorder.isInitialized())
+			return null;
+		CrlLoad event = new CrlLoad();
+		event.begin();
+		return event;
+	}
+
+	static EntryDigest beginEntryDigest() {
+		if (!FlightRecorder.isInitialized())
+			return null;
+		EntryDigest event = new EntryDigest();
+		event.begin();
+		return event;
+	}
+
+	static JarVerification beginJarVerification() {
+		if (!FlightRecorder.isInitialized())
+			return null;
+		JarVerification event = new JarVerification();
+		event.begin();
+		return event;
+	}
+
+	static KeystoreLoad beginKeystoreLoad() {
+		if (!FlightRecorder.isInitialized())
+			return null;
+		KeystoreLoad event = new KeystoreLoad();
+		event.begin();
+		return event;
+	}
+
+	static PathValidation beginPathValidation() {
+		if (!FlightRecorder.isInitialized())
+			return null;
+		PathValidation event = new PathValidation();
+		event.begin();
+		return event;
+	}
+
+	static String result(Throwable failure) {
+		return failure == null ? "valid" : failure.getClass().getSimpleName();
+	}
+
+	private VerificationEvents() {
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import axeos.verify.exceptions.ValidatorException;
+
+/**
+ * Counters and latency histograms of the verifications made by the
+ * validators it is set to, see
+ * {@link JarSignatureValidator#setMetrics(VerificationMetrics)}. Updates are
+ * lock-free, so one instance may be shared by all threads and validators.
+ * <p>
+ * The values can be written in the Prometheus text format or as JSON.
+ * </p>
+ */
+public class VerificationMetrics {
+
+	/**
+	 * Latency histogram with fixed buckets, from 1 ms to 10 s.
+	 */
+	private static class Histogram {
+
+		private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder sumNanos = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			int i = 0;
+			while (i < BOUNDS.length && nanos > BOUNDS[i] * 1e9)
+				i++;
+			buckets[i].increment();
+			count.increment();
+			sumNanos.add(nanos);
+		}
+	}
+
+	private static final double[] BOUNDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	/**
+	 * Results by exit code.
+	 */
+	private static final String[] RESULTS = { "valid", "unsigned_entries", "not_trusted", "expired", "not_signed",
+			"invalid", "error" };
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%s", value);
+	}
+
+	private static int resultIndex(Throwable failure) {
+		if (failure == null)
+			return 0;
+		if (failure instanceof ValidatorException) {
+			ValidatorException e = (ValidatorException) failure;
+			// e.g. missing keystore has no result of its own
+			if (e.getStdOutMessage() != null && e.getExitCode() < RESULTS.length)
+				return e.getExitCode();
+		}
+		return RESULTS.length - 1;
+	}
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final LongAdder cacheHits = new LongAdder();
+
+	private final LongAdder cacheMisses = new LongAdder();
+
+	private final LongAdder entries = new LongAdder();
+
+	private final Histogram jarLatency = new Histogram();
+
+	private final LongAdder[] jars = new LongAdder[RESULTS.length];
+
+	private final Histogram pathLatency = new Histogram();
+
+	private final Histogram revocationLatency = new Histogram();
+
+	public VerificationMetrics() {
+		for (int i = 0; i < jars.length; i++) {
+			jars[i] = new LongAdder();
+		}
+	}
+
+	void cacheHit() {
+		cacheHits.increment();
+	}
+
+	void cacheMiss() {
+		cacheMisses.increment();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	public long getEntries() {
+		return entries.sum();
+	}
+
+	/**
+	 * @param result
+	 *            <code>valid</code>, <code>unsigned_entries</code>,
+	 *            <code>not_trusted</code>, <code>expired</code>,
+	 *            <code>not_signed</code>, <code>invalid</code> or
+	 *            <code>error</code>
+	 * @return number of jars verified with the result
+	 */
+	public long getJars(String result) {
+		for (int i = 0; i < RESULTS.length; i++) {
+			if (RESULTS[i].equals(result))
+				return jars[i].sum();
+		}
+		throw new IllegalArgumentException(result);
+	}
+
+	/**
+	 * Records a verified jar.
+	 *
+	 * @param failure
+	 *            exception the verification failed with or <code>null</code>
+	 */
+	void jarVerified(Throwable failure, int entryCount, long byteCount, long nanos) {
+		jars[resultIndex(failure)].increment();
+		entries.add(entryCount);
+		bytes.add(byteCount);
+		jarLatency.record(nanos);
+	}
+
+	/**
+	 * Records a certificate path validation.
+	 *
+	 * @param revocation
+	 *            the revocation of the certificates was checked by OCSP or
+	 *            CRLs
+	 */
+	void pathValidated(boolean revocation, long nanos) {
+		pathLatency.record(nanos);
+		if (revocation)
+			revocationLatency.record(nanos);
+	}
+
+	private void writeHistogram(Writer out, String name, String help, Histogram histogram) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " histogram\n");
+		long cumulative = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += histogram.buckets[i].sum();
+			out.write(name + "_bucket{le=\"" + format(BOUNDS[i]) + "\"} " + cumulative + "\n");
+		}
+		cumulative += histogram.buckets[BOUNDS.length].sum();
+		out.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+		out.write(name + "_sum " + format(histogram.sumNanos.sum() / 1e9) + "\n");
+		out.write(name + "_count " + histogram.count.sum() + "\n");
+	}
+
+	private void writeJsonHistogram(Writer out, String name, Histogram histogram) throws IOException {
+		out.write("  \"" + name + "\": {\"count\": " + histogram.count.sum() + ", \"sum_seconds\": "
+				+ format(histogram.sumNanos.sum() / 1e9) + ", \"buckets\": {");
+		for (int i = 0; i <= BOUNDS.length; i++) {
+			out.write((i > 0 ? ", " : "") + "\"" + (i < BOUNDS.length ? format(BOUNDS[i]) : "+Inf") + "\": "
+					+ histogram.buckets[i].sum());
+		}
+		out.write("}}");
+	}
+
+	/**
+	 * Writes the metrics as a JSON object. Histogram buckets are not
+	 * cumulative, each one counts the values above the previous bound.
+	 */
+	public void writeJson(Writer out) throws IOException {
+		out.write("{\n  \"jars\": {");
+		for (int i = 0; i < RESULTS.length; i++) {
+			out.write((i > 0 ? ", " : "") + "\"" + RESULTS[i] + "\": " + jars[i].sum());
+		}
+		out.write("},\n");
+		out.write("  \"entries\": " + entries.sum() + ",\n");
+		out.write("  \"bytes\": " + bytes.sum() + ",\n");
+		out.write("  \"cache_hits\": " + cacheHits.sum() + ",\n");
+		out.write("  \"cache_misses\": " + cacheMisses.sum() + ",\n");
+		writeJsonHistogram(out, "jar_verification_seconds", jarLatency);
+		out.write(",\n");
+		writeJsonHistogram(out, "path_validation_seconds", pathLatency);
+		out.write(",\n");
+		writeJsonHistogram(out, "revocation_path_validation_seconds", revocationLatency);
+		out.write("\n}\n");
+	}
+
+	/**
+	 * Writes the metrics in the Prometheus text exposition format.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		out.write("# HELP verify_jar_jars_total Verified jars by result.\n");
+		out.write("# TYPE verify_jar_jars_total counter\n");
+		for (int i = 0; i < RESULTS.length; i++) {
+			out.write("verify_jar_jars_total{result=\"" + RESULTS[i] + "\"} " + jars[i].sum() + "\n");
+		}
+		out.write("# HELP verify_jar_entries_total Entries of the verified jars.\n");
+		out.write("# TYPE verify_jar_entries_total counter\n");
+		out.write("verify_jar_entries_total " + entries.sum() + "\n");
+		out.write("# HELP verify_jar_bytes_total Uncompressed bytes of the digested entries.\n");
+		out.write("# TYPE verify_jar_bytes_total counter\n");
+		out.write("verify_jar_bytes_total " + bytes.sum() + "\n");
+		out.write("# HELP verify_jar_cache_requests_total Verification cache lookups.\n");
+		out.write("# TYPE verify_jar_cache_requests_total counter\n");
+		out.write("verify_jar_cache_requests_total{result=\"hit\"} " + cacheHits.sum() + "\n");
+		out.write("verify_jar_cache_requests_total{result=\"miss\"} " + cacheMisses.sum() + "\n");
+		writeHistogram(out, "verify_jar_jar_verification_seconds", "Time of verifying a whole jar.", jarLatency);
+		writeHistogram(out, "verify_jar_path_validation_seconds", "Time of a certificate path validation.",
+				pathLatency);
+		writeHistogram(out, "verify_jar_revocation_path_validation_seconds",
+				"Time of a certificate path validation checking revocation (OCSP or CRL).", revocationLatency);
+	}
+
+	/**
+	 * Writes the metrics to the file, as JSON if its name ends with
+	 * <code>.json</code>, otherwise in the Prometheus text format. The file is
+	 * replaced atomically, so a scraper never reads a partial one.
+	 */
+	public void writeTo(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			try {
+				if (file.getName().toLowerCase(Locale.ENGLISH).endsWith(".json"))
+					writeJson(out);
+				else
+					writePrometheus(out);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.security.CodeSigner;
+import java.security.Timestamp;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import axeos.verify.exceptions.ExpiredException;
+import axeos.verify.exceptions.InvalidException;
+import axeos.verify.exceptions.NotSignedException;
+import axeos.verify.exceptions.NotTrustedException;
+import axeos.verify.exceptions.UnsignedEntriesException;
+import axeos.verify.exceptions.ValidatorException;
+
+/**
+ * Result of {@link JarSignatureValidator#verify(java.io.File)}: the status the
+ * jar would fail (or pass) {@link JarSignatureValidator#verifyJar} with, and
+ * all the problems found in the whole jar, its signers and the time spent in
+ * each phase.
+ */
+public final class VerificationResult {
+
+	/**
+	 * Problem found in the jar. The first one with the status of the result
+	 * is the one {@link JarSignatureValidator#verifyJar} fails with.
+	 */
+	public static final class Problem {
+
+		private final String entry;
+
+		private final String message;
+
+		private final CodeSigner signer;
+
+		private final Status status;
+
+		Problem(Status status, String entry, CodeSigner signer, String message) {
+			this.status = status;
+			this.entry = entry;
+			this.signer = signer;
+			this.message = message;
+		}
+
+		/**
+		 * @return name of the entry, <code>null</code> for problems of the
+		 *         signers or the whole jar
+		 */
+		public String getEntry() {
+			return entry;
+		}
+
+		/**
+		 * @return description, e.g. the digest error, or <code>null</code>
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return the signer with the problem or <code>null</code>
+		 */
+		public CodeSigner getSigner() {
+			return signer;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder(status.toString());
+			if (entry != null)
+				builder.append(": ").append(entry);
+			if (signer != null)
+				builder.append(": ").append(subject(signer));
+			if (message != null)
+				builder.append(" (").append(message).append(')');
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Status of a jar, with the result strings and exit codes of the command
+	 * line tool.
+	 */
+	public enum Status {
+
+		VALID(0, "valid"), UNSIGNED_ENTRIES(1, "unsigned entries"), NOT_TRUSTED(2, "not trusted"), EXPIRED(3,
+				"expired"), NOT_SIGNED(4, "not signed"), INVALID(5, "invalid"), ERROR(6, "error");
+
+		/**
+		 * @return status of a verification failed with the exception, or
+		 *         {@link #VALID} for <code>null</code>
+		 */
+		public static Status of(Throwable failure) {
+			if (failure == null)
+				return VALID;
+			if (failure instanceof UnsignedEntriesException)
+				return UNSIGNED_ENTRIES;
+			if (failure instanceof NotTrustedException)
+				return NOT_TRUSTED;
+			if (failure instanceof ExpiredException)
+				return EXPIRED;
+			if (failure instanceof NotSignedException)
+				return NOT_SIGNED;
+			if (failure instanceof InvalidException)
+				return INVALID;
+			// including a missing keystore
+			return ERROR;
+		}
+
+		private final int exitCode;
+
+		private final String text;
+
+		private Status(int exitCode, String text) {
+			this.exitCode = exitCode;
+			this.text = text;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	private static String subject(CodeSigner signer) {
+		List<? extends Certificate> certs = signer.getSignerCertPath().getCertificates();
+		if (!certs.isEmpty() && certs.get(0) instanceof X509Certificate)
+			return ((X509Certificate) certs.get(0)).getSubjectX500Principal().getName();
+		return "signer";
+	}
+
+	private final long bytes;
+
+	private final long digestNanos;
+
+	private final int entries;
+
+	private final Throwable failure;
+
+	private final String jar;
+
+	private final List<Problem> problems;
+
+	private final long signerNanos;
+
+	private final Map<CodeSigner, Status> signers;
+
+	private final Status status;
+
+	private final long totalNanos;
+
+	private final long triageNanos;
+
+	private final long trustNanos;
+
+	private final List<String> warnings;
+
+	VerificationResult(String jar, Throwable failure, JarSignatureValidator.Verification verification,
+			long trustNanos, long totalNanos) {
+		this.jar = jar;
+		this.failure = failure;
+		this.status = Status.of(failure);
+		this.trustNanos = trustNanos;
+		this.totalNanos = totalNanos;
+		List<Problem> problems = new ArrayList<Problem>();
+		Map<CodeSigner, Status> signers = new LinkedHashMap<CodeSigner, Status>();
+		List<String> warnings = new ArrayList<String>();
+		if (verification != null) {
+			problems.addAll(verification.problems);
+			for (Map.Entry<CodeSigner, ValidatorException> verdict : verification.signerVerdicts.entrySet()) {
+				signers.put(verdict.getKey(), Status.of(verdict.getValue()));
+			}
+			warnings.addAll(verification.displayedWarings);
+			this.entries = verification.entries;
+			this.bytes = verification.bytes;
+			this.triageNanos = verification.triageNanos;
+			this.signerNanos = verification.signerNanos;
+			this.digestNanos = verification.digestNanos;
+		} else {
+			this.entries = 0;
+			this.bytes = 0;
+			this.triageNanos = 0;
+			this.signerNanos = 0;
+			this.digestNanos = 0;
+		}
+		// e.g. an I/O error, a missing keystore or a triage failure
+		if (failure != null && (problems.isEmpty() || !(failure instanceof ValidatorException))) {
+			String message = failure instanceof ValidatorException ? ((ValidatorException) failure)
+					.getStdErrMessage() : failure.toString();
+			problems.add(new Problem(status, null, null, message));
+		}
+		this.problems = Collections.unmodifiableList(problems);
+		this.signers = Collections.unmodifiableMap(signers);
+		this.warnings = Collections.unmodifiableList(warnings);
+	}
+
+	/**
+	 * @return number of bytes of the entries read
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return time spent reading the entries and checking their digests, in
+	 *         nanoseconds
+	 */
+	public long getDigestNanos() {
+		return digestNanos;
+	}
+
+	/**
+	 * @return number of entries checked
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the exception {@link JarSignatureValidator#verifyJar} would
+	 *         throw, <code>null</code> if the jar is valid
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public String getJar() {
+		return jar;
+	}
+
+	/**
+	 * @return all the problems found: entries with invalid digests and failed
+	 *         signers (each once) in the order of the entries, then the
+	 *         unsigned entries; empty if the jar is valid
+	 */
+	public List<Problem> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * @return certificates of the signers, each the first of its path
+	 */
+	public List<X509Certificate> getSignerCertificates() {
+		List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+		for (CodeSigner signer : signers.keySet()) {
+			List<? extends Certificate> certs = signer.getSignerCertPath().getCertificates();
+			if (!certs.isEmpty() && certs.get(0) instanceof X509Certificate)
+				certificates.add((X509Certificate) certs.get(0));
+		}
+		return certificates;
+	}
+
+	/**
+	 * @return time spent validating the certificate paths of the signers and
+	 *         their time stamping authorities, including OCSP requests, in
+	 *         nanoseconds
+	 */
+	public long getSignerNanos() {
+		return signerNanos;
+	}
+
+	/**
+	 * @return the signers of the jar entries checked, with their status
+	 */
+	public Map<CodeSigner, Status> getSigners() {
+		return signers;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return time stamp of the first time stamped signer or
+	 *         <code>null</code>
+	 */
+	public Timestamp getTimestamp() {
+		for (CodeSigner signer : signers.keySet()) {
+			if (signer.getTimestamp() != null)
+				return signer.getTimestamp();
+		}
+		return null;
+	}
+
+	/**
+	 * @return time of the whole verification, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return time spent in the structural triage, in nanoseconds
+	 */
+	public long getTriageNanos() {
+		return triageNanos;
+	}
+
+	/**
+	 * @return time spent loading the trusted certificates and CRLs, in
+	 *         nanoseconds; 0 when they were loaded already
+	 */
+	public long getTrustNanos() {
+		return trustNanos;
+	}
+
+	/**
+	 * @return the warnings the command line tool writes to stderr
+	 */
+	public List<String> getWarnings() {
+		return warnings;
+	}
+
+	public boolean isValid() {
+		return status == Status.VALID;
+	}
+
+	@Override
+	public String toString() {
+		return jar + ": " + status;
+	}
+
+}
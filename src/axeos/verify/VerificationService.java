@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies many jars concurrently with one {@link JarSignatureValidator}.
+ * <p>
+ * The future returned for a jar completes normally when the jar is valid.
+ * Otherwise {@link Future#get()} throws an
+ * {@link java.util.concurrent.ExecutionException} with the
+ * {@link axeos.verify.exceptions.ValidatorException} (or any other error) as
+ * its cause.
+ * </p>
+ * The validator must not be reconfigured while the service is in use.
+ */
+public class VerificationService {
+
+	private static final Logger log = Logger.getLogger(VerificationService.class.getName());
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// available since Java 21
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			log.log(Level.FINE, "Virtual threads not available, using " + threads + " platform threads", e);
+			return newPlatformThreadExecutor(threads);
+		}
+	}
+
+	private static ExecutorService newPlatformThreadExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "verify-jar-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates service verifying jars on a pool of the given number of threads.
+	 */
+	public static VerificationService withThreads(JarSignatureValidator validator, int threads) {
+		return new VerificationService(validator, newPlatformThreadExecutor(Math.max(1, threads)));
+	}
+
+	/**
+	 * Creates service verifying every jar on its own virtual thread. On Java
+	 * versions without virtual threads a pool of one platform thread per
+	 * processor is used instead.
+	 */
+	public static VerificationService withVirtualThreads(JarSignatureValidator validator) {
+		return new VerificationService(validator, newVirtualThreadExecutor());
+	}
+
+	private final ExecutorService executor;
+
+	private final JarSignatureValidator validator;
+
+	public VerificationService(JarSignatureValidator validator, ExecutorService executor) {
+		this.validator = validator;
+		this.executor = executor;
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public Future<Void> submit(final File jar) {
+		return submit(jar, System.err);
+	}
+
+	/**
+	 * Submits jar for verification, warnings are written to the given stream.
+	 */
+	public Future<Void> submit(final File jar, final PrintStream err) {
+		return executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				JarFile jarFile = new JarFile(jar);
+				try {
+					validator.verifyJar(jarFile, err);
+				} finally {
+					jarFile.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	public List<Future<Void>> submitAll(Collection<File> jars) {
+		return submitAll(jars, System.err);
+	}
+
+	public List<Future<Void>> submitAll(Collection<File> jars, PrintStream err) {
+		List<Future<Void>> result = new ArrayList<Future<Void>>(jars.size());
+		for (File jar : jars) {
+			result.add(submit(jar, err));
+		}
+		return result;
+	}
+
+}
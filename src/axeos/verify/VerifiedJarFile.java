@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.CodeSigner;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import axeos.verify.exceptions.ErrorException;
+import axeos.verify.exceptions.InvalidException;
+import axeos.verify.exceptions.NotSignedException;
+import axeos.verify.exceptions.UnsignedEntriesException;
+import axeos.verify.exceptions.ValidatorException;
+
+/**
+ * Jar file verifying each entry only when it is opened, e.g. by a class
+ * loader using a small part of a large jar. The digest of the entry is checked
+ * and its signers are validated like by
+ * {@link JarSignatureValidator#verifyJar(JarFile, TrustContext, PrintStream)},
+ * each signer once for the whole jar.
+ * <p>
+ * {@link #getInputStream(JarEntry)} throws the {@link ValidatorException} the
+ * full verification would fail with because of the entry:
+ * {@link InvalidException} when its digest or the signature files are
+ * invalid, {@link UnsignedEntriesException} when it is not signed (or
+ * {@link NotSignedException} when the jar has no signature files),
+ * {@link axeos.verify.exceptions.NotTrustedException} or
+ * {@link axeos.verify.exceptions.ExpiredException} for its signers. Entries
+ * never opened are not checked, unless {@link #verifyInBackground()} is
+ * called.
+ * </p>
+ * The validator must not be reconfigured while the file is in use.
+ */
+public class VerifiedJarFile implements Closeable {
+
+	/**
+	 * Entries up to this size are read to memory when first opened, larger
+	 * ones are read twice.
+	 */
+	private static final int MAX_BUFFERED = 1024 * 1024;
+
+	private static byte[] readFully(InputStream in, int size) throws IOException {
+		byte[] data = new byte[size];
+		int pos = 0;
+		int n;
+		while (pos < size && (n = in.read(data, pos, size - pos)) != -1)
+			pos += n;
+		// reading to the end lets the JDK check the digest
+		if (pos < size || in.read() != -1)
+			throw new IOException("Entry size does not match");
+		return data;
+	}
+
+	private Future<Void> background;
+
+	private final PrintStream err;
+
+	private final Map<String, ValidatorException> failures = new ConcurrentHashMap<String, ValidatorException>();
+
+	private volatile boolean fullyVerified;
+
+	private Boolean hasSignatureFiles;
+
+	private final JarFile jarFile;
+
+	private final TrustContext trust;
+
+	private final JarSignatureValidator validator;
+
+	private final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final JarSignatureValidator.Verification verification;
+
+	/**
+	 * Opens the jar with the trust context of the validator, warnings are
+	 * written to {@link System#err}.
+	 */
+	public VerifiedJarFile(File file, JarSignatureValidator validator) throws IOException, KeyStoreException,
+			CertificateException, NoSuchAlgorithmException, CRLException, ValidatorException {
+		this(new JarFile(file), validator, validator.getTrustContext(), System.err);
+	}
+
+	/**
+	 * @param jarFile
+	 *            jar opened with verification enabled, it is closed by
+	 *            {@link #close()}
+	 * @param trust
+	 *            trust context or <code>null</code> to skip certificate path
+	 *            validation
+	 */
+	public VerifiedJarFile(JarFile jarFile, JarSignatureValidator validator, TrustContext trust, PrintStream err) {
+		this.jarFile = jarFile;
+		this.validator = validator;
+		this.trust = trust;
+		this.err = err;
+		this.verification = new JarSignatureValidator.Verification(trust, err);
+	}
+
+	/**
+	 * Checks the signers of an entry read to the end.
+	 */
+	private void check(JarEntry entry) throws ValidatorException {
+		String name = entry.getName();
+		CodeSigner[] codeSigners = entry.getCodeSigners();
+		if (entry.isDirectory() || validator.isSignatureRelatedFilename(name))
+			return;
+		if (codeSigners == null)
+			throw hasSignatureFiles() ? new UnsignedEntriesException() : new NotSignedException();
+		synchronized (verification) {
+			try {
+				validator.verifySigners(codeSigners, verification);
+			} catch (CertificateParsingException e) {
+				ErrorException error = new ErrorException();
+				error.initCause(e);
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * Closes the jar file. A background verification uses its own file and
+	 * is not stopped.
+	 */
+	@Override
+	public void close() throws IOException {
+		jarFile.close();
+	}
+
+	public Enumeration<JarEntry> entries() {
+		return jarFile.entries();
+	}
+
+	/**
+	 * Returns stream of the entry data. When the entry is opened for the
+	 * first time it is read and checked before the stream is returned. The
+	 * stream still checks the digest when read to the end, a mismatch is
+	 * reported with {@link SecurityException}, like by {@link JarFile}.
+	 *
+	 * @return the stream or <code>null</code> if the jar has no such entry
+	 * @throws ValidatorException
+	 *             if the entry would make the jar verification fail
+	 */
+	public InputStream getInputStream(JarEntry entry) throws IOException, ValidatorException {
+		String name = entry.getName();
+		ValidatorException failure = failures.get(name);
+		if (failure != null)
+			throw failure;
+		// code signers are known only for entries of this jar file
+		JarEntry own = jarFile.getJarEntry(name);
+		if (own == null)
+			return null;
+		if (fullyVerified || verified.contains(name))
+			return jarFile.getInputStream(own);
+
+		byte[] data = null;
+		try {
+			InputStream in = jarFile.getInputStream(own);
+			try {
+				long size = own.getSize();
+				if (size >= 0 && size <= MAX_BUFFERED) {
+					data = readFully(in, (int) size);
+				} else {
+					byte[] buffer = new byte[8192];
+					while (in.read(buffer, 0, buffer.length) != -1)
+						;
+				}
+			} finally {
+				in.close();
+			}
+			check(own);
+		} catch (SecurityException e) {
+			InvalidException invalid = new InvalidException();
+			failures.put(name, invalid);
+			throw invalid;
+		} catch (ValidatorException e) {
+			failures.put(name, e);
+			throw e;
+		}
+		verified.add(name);
+		return data != null ? new ByteArrayInputStream(data) : jarFile.getInputStream(own);
+	}
+
+	public JarEntry getJarEntry(String name) {
+		return jarFile.getJarEntry(name);
+	}
+
+	public JarFile getJarFile() {
+		return jarFile;
+	}
+
+	public Manifest getManifest() throws IOException {
+		return jarFile.getManifest();
+	}
+
+	public String getName() {
+		return jarFile.getName();
+	}
+
+	private synchronized boolean hasSignatureFiles() {
+		if (hasSignatureFiles == null) {
+			hasSignatureFiles = false;
+			Enumeration<JarEntry> entriesEnum = jarFile.entries();
+			while (entriesEnum.hasMoreElements()) {
+				String name = entriesEnum.nextElement().getName().toUpperCase(Locale.ENGLISH);
+				if (name.startsWith("META-INF/") && name.endsWith(".SF")) {
+					hasSignatureFiles = true;
+					break;
+				}
+			}
+		}
+		return hasSignatureFiles;
+	}
+
+	/**
+	 * Starts verification of the whole jar in a background daemon thread, the
+	 * same as by
+	 * {@link JarSignatureValidator#verifyJar(JarFile, TrustContext, PrintStream)
+	 * verifyJar}. Once it succeeds, entries are no more checked when opened,
+	 * only their digests by the {@link JarFile} streams.
+	 *
+	 * @return future completing when the jar is verified, failing with the
+	 *         {@link ValidatorException} if it is not valid; the same one for
+	 *         all calls
+	 */
+	public synchronized Future<Void> verifyInBackground() {
+		if (background == null) {
+			FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					// the JarFile verifier must not be used by two threads
+					JarFile file = new JarFile(jarFile.getName());
+					try {
+						validator.verifyJar(file, trust, err);
+					} finally {
+						file.close();
+					}
+					fullyVerified = true;
+					return null;
+				}
+			});
+			Thread thread = new Thread(task, "verify-jar-background");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+			background = task;
+		}
+		return background;
+	}
+
+}
@@ -17,11 +17,32 @@
  */
 package axeos.verify;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.logging.ConsoleHandler;
@@ -35,8 +56,30 @@ import axeos.verify.exceptions.ValidatorException;
 
 public class VerifyJar {
 
+	/**
+	 * Metrics of all the runs in this JVM. Created when metrics are first
+	 * written.
+	 */
+	private static class Metrics {
+
+		static final VerificationMetrics ALL = new VerificationMetrics();
+	}
+
+	/**
+	 * Formatter of the debug output. The logging classes are loaded only when
+	 * it is installed.
+	 */
 	private static class MyFormatter extends Formatter {
 
+		static void install() {
+			Logger logger = Logger.getLogger("");
+			Handler handler = new ConsoleHandler();
+			handler.setFormatter(new MyFormatter());
+			handler.setLevel(Level.ALL);
+			logger.addHandler(handler);
+			logger.setLevel(Level.ALL);
+		}
+
 		private final DateFormat df = new SimpleDateFormat("dd/MM/yyyy hh:mm:ss.SSS");
 
 		@Override
@@ -65,8 +108,22 @@ public class VerifyJar {
 		}
 	}
 
+	/**
+	 * Options writing files, changing the whole process or running until
+	 * stopped, which are not forwarded to a server.
+	 */
+	private static final List<String> LOCAL_OPTIONS = Arrays.asList("-cache", "-connect", "-crl-index", "-debug",
+			"-incremental", "-metrics", "-metrics-interval", "-ocsp-cache", "-serve", "-trust-snapshot", "-watch",
+			"-watch-log");
+
+	static final String SERVER_ENV = "VERIFY_JAR_SERVER";
+
+	private static final String STDIN = "-";
+
 	public static final String VERIFIED = "valid";
 
+	private static boolean debugEnabled = false;
+
 	private static String getBuildDate() {
 		try {
 			URLClassLoader cl = (URLClassLoader) VerifyJar.class.getClassLoader();
@@ -83,64 +140,243 @@ public class VerifyJar {
 		return version == null ? "0.0.0" : version;
 	}
 
+	/**
+	 * @return the first of the arguments which can't be forwarded to a
+	 *         server, or <code>null</code>
+	 */
+	static String localOption(List<String> args) {
+		for (String arg : args) {
+			if (LOCAL_OPTIONS.contains(arg.toLowerCase(Locale.ENGLISH)))
+				return arg;
+		}
+		return null;
+	}
+
 	public static void main(String[] args) throws Exception {
-		VerifyJar v = new VerifyJar();
-		v.parseParameters(args);
-		if (v.file == null) {
-			showHelp();
-			System.exit(-1);
+		List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+		String server = System.getenv(SERVER_ENV);
+		int i = arguments.indexOf("-connect");
+		if (i >= 0 && i + 1 < arguments.size()) {
+			server = arguments.remove(i + 1);
+			arguments.remove(i);
+		}
+		i = arguments.indexOf("-serve");
+		if (i >= 0 && i + 1 < arguments.size()) {
+			new VerifyJarServer(Integer.parseInt(arguments.get(i + 1))).serve();
+			return;
+		}
+
+		String[] a = arguments.toArray(new String[arguments.size()]);
+		// the server protocol can't carry a binary jar
+		if (server != null && !arguments.contains(STDIN) && localOption(arguments) == null) {
+			try {
+				System.exit(VerifyJarClient.forward(Integer.parseInt(server), a));
+			} catch (IOException e) {
+				Logger.getLogger(VerifyJar.class.getName()).log(Level.FINE,
+						"Verification server not available, verifying locally", e);
+			}
 		}
-		v.run();
+
+		System.exit(new VerifyJar(System.out, System.err, System.in, null, null).run(a));
 	}
 
-	private static void showHelp() {
+	private static void showHelp(PrintStream err) {
 		String dt = getBuildDate();
-		System.err.println("Axeos Jar Verifier " + getVersion() + (dt == null ? "" : (" (" + dt + ")")));
-		System.err.println("Usage:");
-		System.err.println("   verify_jar <parameters> <jar_file>");
-		System.err.println("Parameters:");
-		System.err.println("  -trusted-keystore <file>  :  keystore with trusted CA certificates");
-		System.err.println("  -ocsp  :  use OCSP for certificate verification");
-		System.err.println("  -ocsp-responder <url>  :  OCSP responder to use (default: from the signer's certificate)");
-		System.err.println("  -crl <file>  :  certificate revocation list file");
-		System.err.println("  -skip-key-usage  :  do not check key usage attributes on the signer certificate");
-		System.err.println("  -quiet  :  write nothing to stdout and limit warning messages");
-		System.err.println("  -skip-trust-check  :  skip certificate trust check");
-		System.err.println("  -time <time>  :  check signature validity at the given point in time (yyyy-MM-dd[ HH:mm[:ss[.S]]])");
-		System.err.println("  -debug  :  print debug information");
+		err.println("Axeos Jar Verifier " + getVersion() + (dt == null ? "" : (" (" + dt + ")")));
+		err.println("Usage:");
+		err.println("   verify_jar <parameters> <jar_file|directory|-@list_file|->...");
+		err.println("Parameters:");
+		err.println("  -trusted-keystore <file>  :  keystore with trusted CA certificates");
+		err.println("  -trust-snapshot <file>  :  compile the trusted certificates to the file and use it until the keystore changes");
+		err.println("  -ocsp  :  use OCSP for certificate verification");
+		err.println("  -ocsp-responder <url>  :  OCSP responder to use (default: from the signer's certificate)");
+		err.println("  -ocsp-cache <directory>  :  store OCSP responses in the directory until their next update");
+		err.println("  -crl <file>  :  certificate revocation list file");
+		err.println("  -crl-index <directory>  :  check the CRLs with a compact index stored in the directory, parsed again only when changed");
+		err.println("  -skip-key-usage  :  do not check key usage attributes on the signer certificate");
+		err.println("  -quiet  :  write nothing to stdout and limit warning messages");
+		err.println("  -skip-trust-check  :  skip certificate trust check");
+		err.println("  -time <time>  :  check signature validity at the given point in time (yyyy-MM-dd[ HH:mm[:ss[.S]]])");
+		err.println("  -jobs <threads>  :  number of jars verified at the same time (default: 1, nested jars: number of processors)");
+		err.println("  -parallel <threads>  :  number of threads reading entries of a single jar (default: 1)");
+		err.println("  -mapped  :  check entry digests reading the memory mapped jar directly");
+		err.println("  -triage  :  reject unsigned jars and entries reading only the central directory and signature files first, results are labeled '(triage)' or '(full)'");
+		err.println("  -nested  :  verify also jars stored in the jar (and in them), '<jar_file>!<entry>: <result>' is written for each");
+		err.println("  -incremental <file>  :  read only entries changed since the previous version (a *.jar, or a digest record file updated when valid)");
+		err.println("  -cache <directory>  :  cache verification results of unchanged jars in the directory");
+		err.println("  -cache-size <entries>  :  maximum number of cached results (default: 10000)");
+		err.println("  -watch <directory>  :  verify jars created or modified in the directory until it is removed, '<jar_file>: <result>' is written for each");
+		err.println("  -watch-log <file>  :  append the results of -watch to the file instead of stdout");
+		err.println("  -metrics <file>  :  write verification metrics to the file (Prometheus text format, JSON if named *.json)");
+		err.println("  -metrics-interval <seconds>  :  write the metrics also periodically while verifying");
+		err.println("  -debug  :  print debug information");
+		err.println("  -serve <port>  :  run as a server keeping the trust material loaded, listening on localhost for the current user");
+		err.println("  -connect <port>  :  let the server verify the jars (default: $" + SERVER_ENV + ")");
+		err.println("  -@<file>  :  verify jar files listed in the file, one per line ('-@-' reads stdin)");
+		err.println("  -  :  verify jar read from stdin");
+		err.println("When more than one jar is verified, a '<jar_file>: <result>' line is written for each one");
+		err.println("and the exit status is the highest of all the results.");
 	}
 
-	private String file;
+	private boolean batch = false;
+
+	private File cacheDir;
+
+	private int cacheSize = 10000;
+
+	private final PrintStream err;
+
+	private final List<String> files = new ArrayList<String>();
+
+	private final InputStream in;
+
+	private File incremental;
+
+	private File metricsFile;
+
+	private int metricsInterval;
 
-	private final JarSignatureValidator jv = new JarSignatureValidator();
+	private boolean nested = false;
+
+	private int jobs = 1;
+
+	private JarSignatureValidator jv = new JarSignatureValidator();
+
+	private File ocspCacheDir;
+
+	private final PrintStream out;
 
 	private boolean quiet = false;
 
-	private Date parseDate(String d) {
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
-		try {
-			return sdf.parse(d);
-		} catch (Exception e) {
+	private final Map<String, JarSignatureValidator> validators;
+
+	private File watchDir;
+
+	private File watchLog;
+
+	private PrintStream watchLogStream;
+
+	private final File workDir;
+
+	/**
+	 * @param workDir
+	 *            directory relative file names are resolved against,
+	 *            <code>null</code> for the current directory
+	 * @param validators
+	 *            validators shared between runs, by their configuration, or
+	 *            <code>null</code>; used synchronized on the map
+	 */
+	VerifyJar(PrintStream out, PrintStream err, InputStream in, File workDir,
+			Map<String, JarSignatureValidator> validators) {
+		this.out = out;
+		this.err = err;
+		this.in = in;
+		this.workDir = workDir;
+		this.validators = validators;
+	}
+
+	private void addDirectory(File dir) {
+		String[] children = resolve(dir.getPath()).list();
+		if (children == null)
+			return;
+		Arrays.sort(children);
+		for (String child : children) {
+			File f = new File(dir, child);
+			if (resolve(f.getPath()).isDirectory()) {
+				addDirectory(f);
+			} else if (child.toLowerCase().endsWith(".jar")) {
+				files.add(f.getPath());
+			}
 		}
-		sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		try {
-			return sdf.parse(d);
-		} catch (Exception e) {
+	}
+
+	private void addFile(String name) {
+		if (resolve(name).isDirectory()) {
+			batch = true;
+			addDirectory(new File(name));
+		} else {
+			files.add(name);
 		}
-		sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+	}
+
+	private boolean addListedFiles(String listFile) {
+		batch = true;
+		BufferedReader reader = null;
 		try {
-			return sdf.parse(d);
-		} catch (Exception e) {
+			if ("-".equals(listFile)) {
+				reader = new BufferedReader(new InputStreamReader(in));
+			} else {
+				reader = new BufferedReader(new FileReader(resolve(listFile)));
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#"))
+					addFile(line);
+			}
+		} catch (IOException e) {
+			err.println("Can't read file list '" + listFile + "': " + e.getMessage());
+			return false;
+		} finally {
+			if (reader != null && !"-".equals(listFile)) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
 		}
-		sdf = new SimpleDateFormat("yyyy-MM-dd");
-		try {
-			return sdf.parse(d);
-		} catch (Exception e) {
+		return true;
+	}
+
+	private void enableDebug() {
+		synchronized (VerifyJar.class) {
+			if (debugEnabled)
+				return;
+			debugEnabled = true;
 		}
-		return null;
+		MyFormatter.install();
 	}
 
-	private void parseParameters(String[] args) {
+	/**
+	 * Parses <code>yyyy-MM-dd[ HH:mm[:ss[.S]]]</code> in the default time zone,
+	 * leniently like <code>SimpleDateFormat</code>, without the locale data it
+	 * loads.
+	 *
+	 * @return the date or <code>null</code> if it can't be parsed
+	 */
+	private Date parseDate(String d) {
+		// year, month, day, hour, minute, second, millisecond
+		int[] fields = new int[7];
+		String separators = "-- ::.";
+		int n = 0;
+		int pos = 0;
+		while (n < fields.length) {
+			int start = pos;
+			while (pos < d.length() && pos - start < 9 && d.charAt(pos) >= '0' && d.charAt(pos) <= '9') {
+				fields[n] = fields[n] * 10 + d.charAt(pos++) - '0';
+			}
+			if (pos == start)
+				break;
+			n++;
+			if (n == fields.length || pos == d.length() || d.charAt(pos) != separators.charAt(n - 1))
+				break;
+			pos++;
+		}
+		if (n < 3)
+			return null;
+		if (n == 4) {
+			// only the date matches, the rest is ignored
+			fields[3] = 0;
+		}
+		long local = LocalDate.of(fields[0], 1, 1).plusMonths(fields[1] - 1).plusDays(fields[2] - 1).toEpochDay()
+				* 86400000L + fields[3] * 3600000L + fields[4] * 60000L + fields[5] * 1000L + fields[6];
+		TimeZone tz = TimeZone.getDefault();
+		// in a DST gap the offset before it applies, as with a lenient SimpleDateFormat
+		int offset = tz.getOffset(local - tz.getOffset(local - tz.getRawOffset()));
+		return new Date(local - offset);
+	}
+
+	private boolean parseParameters(String[] args) {
 		for (int i = 0; i < args.length; i++) {
 			String par = args[i];
 			if ("-skip-trust-check".equalsIgnoreCase(par)) {
@@ -155,56 +391,362 @@ public class VerifyJar {
 				quiet = true;
 				jv.setQuiet(quiet);
 			} else if ("-debug".equalsIgnoreCase(par)) {
-				Logger logger = Logger.getLogger("");
-				Handler handler = new ConsoleHandler();
-				handler.setFormatter(new MyFormatter());
-				handler.setLevel(Level.ALL);
-				logger.addHandler(handler);
-				logger.setLevel(Level.ALL);
+				enableDebug();
 			} else if ("-trusted-keystore".equalsIgnoreCase(par)) {
-				jv.setTrustedKeystore(args[++i]);
+				jv.setTrustedKeystore(resolve(args[++i]).getPath());
+			} else if ("-trust-snapshot".equalsIgnoreCase(par)) {
+				jv.setTrustSnapshot(resolve(args[++i]));
 			} else if ("-ocsp".equalsIgnoreCase(par)) {
 				jv.setUseOCSP(true);
 			} else if ("-ocsp-responder".equalsIgnoreCase(par)) {
 				jv.setUseOCSP(true);
 				jv.setOcspResponderURL(args[++i]);
+			} else if ("-ocsp-cache".equalsIgnoreCase(par)) {
+				ocspCacheDir = resolve(args[++i]);
+				jv.setOcspCache(new OcspResponseCache(ocspCacheDir, 10000));
 			} else if ("-crl".equalsIgnoreCase(par)) {
-				jv.getCrlFileNames().add(args[++i]);
+				jv.getCrlFileNames().add(resolve(args[++i]).getPath());
+			} else if ("-crl-index".equalsIgnoreCase(par)) {
+				jv.setCrlIndexDirectory(resolve(args[++i]));
+			} else if ("-incremental".equalsIgnoreCase(par)) {
+				incremental = resolve(args[++i]);
+			} else if ("-cache".equalsIgnoreCase(par)) {
+				cacheDir = resolve(args[++i]);
+			} else if ("-cache-size".equalsIgnoreCase(par)) {
+				cacheSize = Integer.parseInt(args[++i]);
+			} else if ("-watch".equalsIgnoreCase(par)) {
+				watchDir = resolve(args[++i]);
+				batch = true;
+			} else if ("-watch-log".equalsIgnoreCase(par)) {
+				watchLog = resolve(args[++i]);
+			} else if ("-metrics".equalsIgnoreCase(par)) {
+				metricsFile = resolve(args[++i]);
+			} else if ("-metrics-interval".equalsIgnoreCase(par)) {
+				metricsInterval = Integer.parseInt(args[++i]);
+			} else if ("-jobs".equalsIgnoreCase(par)) {
+				jobs = Integer.parseInt(args[++i]);
+				jv.setNestedParallelism(jobs);
+			} else if ("-nested".equalsIgnoreCase(par)) {
+				nested = true;
+				batch = true;
+			} else if ("-mapped".equalsIgnoreCase(par)) {
+				jv.setMapped(true);
+			} else if ("-triage".equalsIgnoreCase(par)) {
+				jv.setTriage(true);
+			} else if ("-parallel".equalsIgnoreCase(par)) {
+				jv.setParallelism(Integer.parseInt(args[++i]));
 			} else if ("-skip-key-usage".equalsIgnoreCase(par)) {
 				jv.setSkipCertUsage(true);
-			} else if (file == null && !par.startsWith("-")) {
-				file = par;
+			} else if (par.startsWith("-@") && par.length() > 2) {
+				if (!addListedFiles(par.substring(2)))
+					return false;
+			} else if (!par.startsWith("-")) {
+				addFile(par);
+			} else if (STDIN.equals(par)) {
+				files.add(par);
 			} else {
-				System.err.println("Unkown command '" + par + "'");
-				showHelp();
-				System.exit(255);
+				err.println("Unkown command '" + par + "'");
+				showHelp(err);
+				return false;
 			}
 		}
+		if (files.contains(STDIN) && Arrays.asList(args).contains("-@-")) {
+			err.println("Standard input can't be used for both the jar and the file list");
+			return false;
+		}
+		if (watchDir != null && !files.isEmpty()) {
+			err.println("Jar files can't be verified together with -watch");
+			return false;
+		}
+		if (watchDir != null && !watchDir.isDirectory()) {
+			err.println("Not a directory '" + watchDir + "'");
+			return false;
+		}
+		if (incremental != null && (batch || files.size() != 1 || files.contains(STDIN))) {
+			err.println("Only a single jar file can be verified incrementally");
+			return false;
+		}
+		if (cacheDir != null) {
+			jv.setVerdictCache(new VerdictCache(cacheDir, cacheSize));
+		}
+		return true;
 	}
 
-	private void run() {
-		try {
-			jv.verifyJar(new JarFile(file));
+	private int reportNested(String file, List<NestedJarResult> nested) {
+		int status = 0;
+		for (NestedJarResult result : nested) {
+			String name = file + "!" + result.getName();
+			status = Math.max(status, report(name, result.getFailure()));
+			status = Math.max(status, reportNested(name, result.getNested()));
+		}
+		return status;
+	}
+
+	private int report(String file, Throwable failure) {
+		String prefix = batch || files.size() > 1 ? file + ": " : "";
+		String label = "";
+		if (jv.isTriage()) {
+			boolean triage = failure instanceof ValidatorException && ((ValidatorException) failure).isTriage();
+			label = triage ? " (triage)" : " (full)";
+		}
+		PrintStream results = watchLogStream != null ? watchLogStream : out;
+		if (failure == null) {
 			if (!quiet) {
-				System.out.println("valid");
+				results.println(prefix + VERIFIED + label);
 			}
-			System.exit(0);
-		} catch (ValidatorException e) {
+			return 0;
+		} else if (failure instanceof ValidatorException) {
+			ValidatorException e = (ValidatorException) failure;
 			String errMsg = e.getStdErrMessage();
 			String outMsg = e.getStdOutMessage();
 			int code = e.getExitCode();
 
 			if (!quiet && outMsg != null)
-				System.out.println(outMsg);
+				results.println(prefix + outMsg + label);
 			if (errMsg != null)
-				System.err.println(errMsg);
-			System.exit(code);
-		} catch (Throwable e) {
-			e.printStackTrace();
+				err.println(prefix + errMsg);
+			return code;
+		} else {
+			failure.printStackTrace(err);
 			if (!quiet) {
-				System.out.println("error");
+				results.println(prefix + "error" + label);
+			}
+			return 6;
+		}
+	}
+
+	private File resolve(String name) {
+		File f = new File(name);
+		if (workDir == null || f.isAbsolute())
+			return f;
+		return new File(workDir, name);
+	}
+
+	/**
+	 * Runs a single command, like {@link #main(String[])} does, but without
+	 * exiting the JVM.
+	 *
+	 * @return exit status
+	 */
+	int run(String[] args) {
+		if (!parseParameters(args))
+			return 255;
+		if (files.isEmpty() && !batch) {
+			showHelp(err);
+			return 255;
+		}
+
+		if (validators != null) {
+			String key = validatorKey();
+			synchronized (validators) {
+				JarSignatureValidator shared = validators.get(key);
+				if (shared != null)
+					jv = shared;
+				else
+					validators.put(key, jv);
 			}
-			System.exit(6);
+		}
+
+		if (metricsFile == null)
+			return verifyAll();
+
+		jv.setMetrics(Metrics.ALL);
+		ScheduledExecutorService writer = null;
+		if (metricsInterval > 0) {
+			writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "verify-jar-metrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			writer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					writeMetrics();
+				}
+			}, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+		}
+		try {
+			return verifyAll();
+		} finally {
+			if (writer != null)
+				writer.shutdownNow();
+			writeMetrics();
+		}
+	}
+
+	private int verifyAll() {
+		if (watchDir != null)
+			return watch();
+		if (!batch && files.size() == 1) {
+			return verify(files.get(0));
+		}
+
+		int status = 0;
+		// nested jars are verified in parallel already
+		if (jobs > 1 && !files.contains(STDIN) && !nested) {
+			List<File> jars = new ArrayList<File>(files.size());
+			for (String file : files) {
+				jars.add(resolve(file));
+			}
+			VerificationService service = VerificationService.withThreads(jv, jobs);
+			List<Future<Void>> results = service.submitAll(jars, err);
+			for (int i = 0; i < results.size(); i++) {
+				Throwable failure = null;
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					failure = e.getCause();
+				} catch (InterruptedException e) {
+					failure = e;
+				}
+				status = Math.max(status, report(files.get(i), failure));
+			}
+			service.shutdown();
+		} else {
+			for (String file : files) {
+				status = Math.max(status, verify(file));
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * @return string identifying the validator configuration, including state
+	 *         of the trust files, so a changed keystore is loaded again
+	 */
+	private String validatorKey() {
+		StringBuilder key = new StringBuilder();
+		List<String> trustFiles = new ArrayList<String>(jv.getCrlFileNames());
+		trustFiles.add(jv.getTrustedKeystore());
+		for (String name : trustFiles) {
+			if (name != null) {
+				File f = new File(name);
+				key.append(name).append(':').append(f.lastModified()).append(':').append(f.length()).append('\n');
+			}
+		}
+		key.append(jv.isUseOCSP()).append(' ').append(jv.getOcspResponderURL()).append(' ').append(ocspCacheDir)
+				.append(' ').append(jv.getCrlIndexDirectory()).append(' ').append(jv.getTrustSnapshot())
+				.append('\n');
+		key.append(jv.getVerificationDate() == null ? null : jv.getVerificationDate().getTime()).append('\n');
+		key.append(jv.isSkipTrustCheck()).append(' ').append(jv.isSkipCertUsage()).append(' ')
+				.append(jv.getParallelism()).append(' ').append(jv.getNestedParallelism()).append(' ')
+				.append(jv.isMapped()).append(' ').append(jv.isTriage()).append(' ').append(jv.isQuiet()).append('\n');
+		key.append(cacheDir).append(' ').append(cacheSize);
+		return key.toString();
+	}
+
+	private int verify(String file) {
+		try {
+			if (STDIN.equals(file)) {
+				jv.verifyJar(in, err);
+				return report(file, null);
+			}
+			JarFile jarFile = new JarFile(resolve(file));
+			try {
+				if (nested)
+					return verifyWithNested(file, jarFile);
+				if (incremental != null)
+					verifyIncremental(jarFile);
+				else
+					jv.verifyJar(jarFile, err);
+			} finally {
+				jarFile.close();
+			}
+			return report(file, null);
+		} catch (Throwable e) {
+			return report(file, e);
+		}
+	}
+
+	/**
+	 * Verifies the jar against the previous version, given as a jar or a
+	 * digest record. A previous jar is verified in full first and not used
+	 * unless valid. The record is replaced with the one of the jar when it is
+	 * valid, so it always describes a valid jar.
+	 */
+	private void verifyIncremental(JarFile jarFile) throws Exception {
+		boolean previousJar = incremental.getName().toLowerCase().endsWith(".jar");
+		JarDigestRecord previous = null;
+		try {
+			if (previousJar) {
+				JarFile previousFile = new JarFile(incremental);
+				try {
+					jv.verifyJar(previousFile, jv.getTrustContext(), null);
+					previous = JarDigestRecord.of(previousFile);
+				} catch (ValidatorException e) {
+					err.println("Previous version '" + incremental + "' is not valid, verifying all entries");
+				} finally {
+					previousFile.close();
+				}
+			} else if (incremental.exists()) {
+				previous = JarDigestRecord.read(incremental);
+			}
+		} catch (IOException e) {
+			err.println("Can't read previous version '" + incremental + "': " + e.getMessage());
+		}
+		jv.verifyJar(jarFile, previous, err);
+		if (!previousJar) {
+			try {
+				JarDigestRecord.of(jarFile).write(incremental);
+			} catch (IOException e) {
+				err.println("Can't write digest record '" + incremental + "': " + e.getMessage());
+			}
+		}
+	}
+
+	private int verifyWithNested(String file, JarFile jarFile) throws Exception {
+		TrustContext trust = jv.getTrustContext();
+		ValidatorException failure = null;
+		try {
+			jv.verifyJar(jarFile, trust, err);
+		} catch (ValidatorException e) {
+			failure = e;
+		}
+		return Math.max(report(file, failure), reportNested(file, jv.verifyNestedJars(jarFile, trust, err)));
+	}
+
+	/**
+	 * Verifies the jars in the watched directory as they are created or
+	 * modified, until the directory is removed.
+	 *
+	 * @return the highest status of the verified jars
+	 */
+	private int watch() {
+		final int[] status = new int[1];
+		try {
+			if (watchLog != null)
+				watchLogStream = new PrintStream(new FileOutputStream(watchLog, true), true);
+			new DirectoryWatcher(watchDir, jobs, new DirectoryWatcher.Listener() {
+				@Override
+				public void changed(File jar) {
+					int s = verify(jar.getPath());
+					synchronized (status) {
+						status[0] = Math.max(status[0], s);
+					}
+				}
+			}).watch();
+		} catch (IOException e) {
+			err.println("Can't watch directory '" + watchDir + "': " + e.getMessage());
+			return 6;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (watchLogStream != null)
+				watchLogStream.close();
+		}
+		synchronized (status) {
+			return status[0];
+		}
+	}
+
+	private void writeMetrics() {
+		try {
+			Metrics.ALL.writeTo(metricsFile);
+		} catch (IOException e) {
+			err.println("Can't write metrics to '" + metricsFile + "': " + e.getMessage());
 		}
 	}
 }
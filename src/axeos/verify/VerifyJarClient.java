@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Forwards a command to {@link VerifyJarServer}.
+ * <p>
+ * The request is a <code>VERIFY_JAR 2</code> line followed by
+ * <code>token &lt;token&gt;</code>, <code>cwd &lt;dir&gt;</code>, an <code>arg &lt;argument&gt;</code> line for
+ * each argument, <code>in &lt;line&gt;</code> lines with the standard input
+ * (sent only for <code>-@-</code>) and the <code>end</code> line. The server
+ * answers with <code>out &lt;line&gt;</code> and <code>err &lt;line&gt;</code>
+ * lines and finally with the <code>exit &lt;status&gt;</code> line.
+ * </p>
+ * <p>
+ * The token is written by the server to {@link #tokenFile(int)}, readable by
+ * its user only, so other local users can't send requests.
+ * </p>
+ */
+class VerifyJarClient {
+
+	static final String CHARSET = "UTF-8";
+
+	static final String HEADER = "VERIFY_JAR 2";
+
+	/**
+	 * @return exit status of the command
+	 * @throws IOException
+	 *             when the server cannot be reached
+	 */
+	static int forward(int port, String[] args) throws IOException {
+		String token = new String(Files.readAllBytes(tokenFile(port).toPath()), CHARSET).trim();
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			Writer writer = new OutputStreamWriter(socket.getOutputStream(), CHARSET);
+			writer.write(HEADER + "\n");
+			writer.write("token " + token + "\n");
+			writer.write("cwd " + new File("").getAbsolutePath() + "\n");
+			for (String arg : args) {
+				writer.write("arg " + arg + "\n");
+			}
+			if (Arrays.asList(args).contains("-@-")) {
+				BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+				String line;
+				while ((line = stdin.readLine()) != null) {
+					writer.write("in " + line + "\n");
+				}
+			}
+			writer.write("end\n");
+			writer.flush();
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("out ")) {
+					System.out.println(line.substring(4));
+				} else if (line.startsWith("err ")) {
+					System.err.println(line.substring(4));
+				} else if (line.startsWith("exit ")) {
+					System.out.flush();
+					return Integer.parseInt(line.substring(5));
+				} else if (line.equals("denied")) {
+					// e.g. the token of a server no longer running
+					throw new IOException("Verification server denied the request");
+				}
+			}
+			System.err.println("Verification server closed the connection");
+			return 6;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @return file with the token of the server listening on the port
+	 */
+	static File tokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".verify_jar" + File.separator + "server-" + port
+				+ ".token");
+	}
+
+}
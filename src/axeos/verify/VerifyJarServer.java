@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verification server, see {@link VerifyJarClient} for the protocol. The
+ * validators (and so the loaded trust material) are kept between requests
+ * with the same options, those of the {@link #MAX_VALIDATORS} option sets used
+ * last. Only requests with the token the server wrote for
+ * its user are handled, and options writing files or changing the server
+ * process are rejected, see {@link VerifyJar#localOption(List)}.
+ */
+class VerifyJarServer {
+
+	/**
+	 * Sends lines written to the stream to the client, each one with the
+	 * given prefix.
+	 */
+	private static class LineOutputStream extends OutputStream {
+
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		private final String prefix;
+
+		private final Writer writer;
+
+		LineOutputStream(Writer writer, String prefix) {
+			this.writer = writer;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (line.size() > 0)
+				sendLine();
+		}
+
+		private void sendLine() throws IOException {
+			String text = new String(line.toByteArray(), VerifyJarClient.CHARSET);
+			line.reset();
+			synchronized (writer) {
+				writer.write(prefix + text + "\n");
+				writer.flush();
+			}
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			if (b == '\n') {
+				sendLine();
+			} else if (b != '\r') {
+				line.write(b);
+			}
+		}
+	}
+
+	/**
+	 * Validators kept, the least recently used are dropped.
+	 */
+	static final int MAX_VALIDATORS = 16;
+
+	private final Logger log = Logger.getLogger(VerifyJarServer.class.getName());
+
+	private final int port;
+
+	private String token;
+
+	// by their options, used synchronized, see VerifyJar
+	private final Map<String, JarSignatureValidator> validators = new LinkedHashMap<String, JarSignatureValidator>(16,
+			0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, JarSignatureValidator> eldest) {
+			return size() > MAX_VALIDATORS;
+		}
+	};
+
+	VerifyJarServer(int port) {
+		this.port = port;
+	}
+
+	private void handle(Socket socket) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				VerifyJarClient.CHARSET));
+		Writer writer = new OutputStreamWriter(socket.getOutputStream(), VerifyJarClient.CHARSET);
+
+		if (!VerifyJarClient.HEADER.equals(reader.readLine())) {
+			log.warning("Invalid request from " + socket.getRemoteSocketAddress());
+			return;
+		}
+		String line = reader.readLine();
+		if (line == null || !line.startsWith("token ")
+				|| !MessageDigest.isEqual(token.getBytes(VerifyJarClient.CHARSET), line.substring(6).getBytes(
+						VerifyJarClient.CHARSET))) {
+			log.warning("Request without a valid token from " + socket.getRemoteSocketAddress());
+			writer.write("denied\n");
+			writer.flush();
+			return;
+		}
+
+		File workDir = null;
+		List<String> args = new ArrayList<String>();
+		StringBuilder stdin = new StringBuilder();
+		while ((line = reader.readLine()) != null && !"end".equals(line)) {
+			if (line.startsWith("cwd ")) {
+				workDir = new File(line.substring(4));
+			} else if (line.startsWith("arg ")) {
+				args.add(line.substring(4));
+			} else if (line.startsWith("in ")) {
+				stdin.append(line.substring(3)).append('\n');
+			}
+		}
+		if (line == null)
+			return;
+
+		PrintStream out = new PrintStream(new LineOutputStream(writer, "out "), true, VerifyJarClient.CHARSET);
+		PrintStream err = new PrintStream(new LineOutputStream(writer, "err "), true, VerifyJarClient.CHARSET);
+		int status;
+		String local = VerifyJar.localOption(args);
+		if (local != null) {
+			err.println("Option '" + local + "' can't be used with the verification server");
+			status = 255;
+		} else {
+			try {
+				VerifyJar v = new VerifyJar(out, err, new ByteArrayInputStream(stdin.toString().getBytes(
+						VerifyJarClient.CHARSET)), workDir, validators);
+				status = v.run(args.toArray(new String[args.size()]));
+			} catch (Throwable e) {
+				e.printStackTrace(err);
+				status = 6;
+			}
+		}
+		out.close();
+		err.close();
+		synchronized (writer) {
+			writer.write("exit " + status + "\n");
+			writer.flush();
+		}
+	}
+
+	void serve() throws IOException {
+		ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "verify-jar-request");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// only local clients, the server reads any file it is asked to
+		ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			writeToken();
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+		log.info("Listening on " + serverSocket.getLocalSocketAddress());
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle(socket);
+						} catch (IOException e) {
+							log.log(Level.FINE, "Request failed", e);
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			serverSocket.close();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes a new random token to the token file, readable by the user only.
+	 */
+	private void writeToken() throws IOException {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		token = TrustContext.toHex(random);
+
+		File file = VerifyJarClient.tokenFile(port);
+		Path dir = file.getParentFile().toPath();
+		Files.createDirectories(dir);
+		try {
+			Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system, the user's home directory is private
+		}
+		// created with owner only permissions
+		Path tmp = Files.createTempFile(dir, "server", ".tmp");
+		try {
+			Files.write(tmp, token.getBytes(VerifyJarClient.CHARSET));
+			Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+}
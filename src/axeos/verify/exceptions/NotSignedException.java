@@ -26,4 +26,8 @@ public class NotSignedException extends ValidatorException {
 	public NotSignedException() {
 		super(4, "not signed", null);
 	}
+
+	public NotSignedException(boolean triage) {
+		super(4, "not signed", null, triage);
+	}
 }
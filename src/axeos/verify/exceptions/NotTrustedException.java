@@ -27,4 +27,8 @@ public class NotTrustedException extends ValidatorException {
 		super(2, "not trusted", null);
 	}
 
+	public NotTrustedException(String stdErrMessage) {
+		super(2, "not trusted", stdErrMessage);
+	}
+
 }
@@ -27,4 +27,8 @@ public class UnsignedEntriesException extends ValidatorException {
 		super(1, "unsigned entries", null);
 	}
 
+	public UnsignedEntriesException(boolean triage) {
+		super(1, "unsigned entries", null, triage);
+	}
+
 }
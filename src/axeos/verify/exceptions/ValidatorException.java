@@ -29,11 +29,18 @@ public abstract class ValidatorException extends Exception {
 
 	private final String stdOutMessage;
 
+	private final boolean triage;
+
 	protected ValidatorException(int exitCode, String stdOutMessage, String stdErrMessage) {
+		this(exitCode, stdOutMessage, stdErrMessage, false);
+	}
+
+	protected ValidatorException(int exitCode, String stdOutMessage, String stdErrMessage, boolean triage) {
 		super();
 		this.exitCode = exitCode;
 		this.stdOutMessage = stdOutMessage;
 		this.stdErrMessage = stdErrMessage;
+		this.triage = triage;
 	}
 
 	public int getExitCode() {
@@ -48,4 +55,13 @@ public abstract class ValidatorException extends Exception {
 		return stdOutMessage;
 	}
 
+	/**
+	 * @return <code>true</code> if the failure was found by the structural
+	 *         triage, from the central directory, the manifest and the
+	 *         signature files only, without reading the entries
+	 */
+	public boolean isTriage() {
+		return triage;
+	}
+
 }
@@ -75,6 +75,25 @@ if [ ! -f expired_ca_sign.crt ] ; then
 	rm -f expired_ca_sign.req
 fi
 
+# CRLs of the test CA 1, the revocation of the certificates is checked at 2013-06-01
+crl() {
+	printf "$2" > crl_db.txt
+	CRL_DATABASE=crl_db.txt openssl ca -gencrl -batch -config crl.cnf -keyfile "${4:-ca1.key}" -cert "${5:-ca1.crt}" \
+		-crl_lastupdate 120601000000Z -crl_nextupdate "${3:-20991231000000Z}" $6 -out "$1"
+	rm -f crl_db.txt crl_db.txt.attr crl_db.txt.old
+}
+if [ ! -f ca1_revoked_sign1.crl ] ; then
+	crl ca1_revoked_sign1.crl "R\t220526110616Z\t120601000000Z\t02\tunknown\t/CN=Test Signer 1\n"
+	crl ca1_revoked_bad_sign.crl "R\t220526110616Z\t120601000000Z\t04\tunknown\t/CN=Bad Signer\n"
+	crl ca1_expired.crl "" 130101000000Z
+	# partition of the CA certificates only, sign1 is not in its scope
+	crl ca1_ca_only.crl "" 20991231000000Z ca1.key ca1.crt "-crlexts ca_only"
+	# signed by another key with the name of the test CA 1
+	openssl req -new -x509 -batch -nodes -subj "/CN=Test CA 1" -days 1 -keyout fake_ca1.key -out fake_ca1.crt
+	crl ca1_wrong_signature.crl "" 20991231000000Z fake_ca1.key fake_ca1.crt
+	rm -f fake_ca1.key fake_ca1.crt
+fi
+
 
 rm -f trusted1.jks || :
 rm -f trusted2.jks || :
@@ -2,6 +2,7 @@
 
 from __future__ import print_function
 
+import os
 import sys
 import subprocess
 import re
@@ -19,7 +20,14 @@ else:
 def run_test(test_name, test_args, test_status, invert_status_check,
                                                     test_stdout, test_stderr):
     print("{0}: ".format(test_name), end="")
-    cmd = ["java", "-jar", "../target/verify_jar.jar"] + test_args
+    if test_args and test_args[0].startswith("class:"):
+        # test program of test/src, see the 'test' target of build.xml
+        cmd = ["java", "-Djava.security.properties=test.security", "-cp",
+                os.pathsep.join(["../target/verify_jar.jar",
+                                 "../target/test-classes"]),
+                test_args[0][len("class:"):]] + test_args[1:]
+    else:
+        cmd = ["java", "-jar", "../target/verify_jar.jar"] + test_args
     if verbose:
         print()
         print("  running command:", repr(" ".join(cmd)))
@@ -91,3 +91,76 @@ if [ ! -f unsigned_file.jar ] ; then
 	jar uf unsigned_file.jar -C "$dir" four.txt
         rm -r "$dir"
 fi
+
+if [ ! -f nested.jar ] ; then
+	dir=$(mktemp -d tmp.XXXXXXXXXX)
+	mkdir "$dir/lib"
+	cp sign1.jar unsigned_file.jar "$dir/lib"
+	jar cf nested.jar -C "$dir" lib
+	rm -r "$dir"
+	jarsigner -keystore ../certs/all.jks -storepass 123456 nested.jar sign1
+fi
+
+if [ ! -f nested_deep.jar ] ; then
+	dir=$(mktemp -d tmp.XXXXXXXXXX)
+	mkdir "$dir/lib"
+	cp nested.jar "$dir/lib"
+	jar cf nested_deep.jar -C "$dir" lib
+	rm -r "$dir"
+	jarsigner -keystore ../certs/all.jks -storepass 123456 nested_deep.jar sign1
+fi
+
+if [ ! -f tampered.jar ] ; then
+	cp sign1.jar tampered.jar
+	dir=$(mktemp -d tmp.XXXXXXXXXX)
+	echo "TWO" > $dir/two.txt
+	jar uf tampered.jar -C "$dir" two.txt
+	rm -r "$dir"
+fi
+
+if [ ! -f dot_slash.jar ] ; then
+	# the JDK strips a leading "./" from the entry names
+	cp sign1.jar dot_slash.jar
+	printf "@ two.txt\n@=./two.txt\n" | zipnote -w dot_slash.jar
+fi
+
+if [ ! -f tampered_unsigned.jar ] ; then
+	cp tampered.jar tampered_unsigned.jar
+	dir=$(mktemp -d tmp.XXXXXXXXXX)
+	echo "four" > $dir/four.txt
+	jar uf tampered_unsigned.jar -C "$dir" four.txt
+	rm -r "$dir"
+fi
+
+if [ ! -f forged_crc.jar ] ; then
+	# dir/three.txt changed after signing, keeping its CRC and size, and
+	# stored last, so it is not the first entry of its signers
+	python3 - <<'PY'
+import zipfile, zlib
+table = []
+for i in range(256):
+	c = i
+	for _ in range(8):
+		c = (c >> 1) ^ 0xEDB88320 if c & 1 else c >> 1
+	table.append(c)
+top = dict((t >> 24, i) for i, t in enumerate(table))
+def forge(prefix, crc):
+	# four bytes appended to the prefix giving the CRC
+	reg = crc ^ 0xffffffff
+	for _ in range(4):
+		i = top[reg >> 24]
+		reg = ((reg ^ table[i]) << 8 | i) & 0xffffffff
+	reg ^= zlib.crc32(prefix) ^ 0xffffffff
+	return prefix + reg.to_bytes(4, 'little')
+src = zipfile.ZipFile('sign1.jar')
+dst = zipfile.ZipFile('forged_crc.jar', 'w')
+infos = src.infolist()
+infos.sort(key=lambda info: info.filename == 'dir/three.txt')
+for info in infos:
+	data = src.read(info)
+	if info.filename == 'dir/three.txt':
+		data = forge(b'TH', zlib.crc32(data))
+	dst.writestr(info, data)
+dst.close()
+PY
+fi
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Verifies the test jars one after another with
+ * <code>verify_jar -incremental</code> and a digest record file, run from
+ * the <code>test</code> directory. Prints the result of each jar and whether
+ * the record file was replaced.
+ */
+public class IncrementalTest {
+
+	public static void main(String[] args) throws Exception {
+		File record = File.createTempFile("incremental", ".rec");
+		record.delete();
+		try {
+			for (String jar : new String[] { "sign1.jar", "forged_crc.jar", "tampered.jar", "sign1.jar" }) {
+				long modified = record.lastModified();
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new VerifyJar(new PrintStream(out, true), new PrintStream(new ByteArrayOutputStream()), null, null,
+						null).run(new String[] { "-date", "2013-06-01", "-trusted-keystore", "certs/trusted1.jks",
+						"-incremental", record.getPath(), "jars/" + jar });
+				System.out.println(jar + ": " + out.toString("UTF-8").trim() + ", record "
+						+ (record.lastModified() != modified ? "written" : "kept"));
+				// the next record gets another modification time
+				Thread.sleep(1100);
+			}
+		} finally {
+			record.delete();
+		}
+	}
+
+}
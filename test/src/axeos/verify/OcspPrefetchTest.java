@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.security.PrivateKey;
+import java.security.cert.CertPath;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks {@link TrustContext#prefetchOcspResponses(java.util.Collection)}
+ * against a {@link StubOcspResponder} of the test CA 1, with the paths of the
+ * signer 1 and the revoked TSA 1, run from the <code>test</code> directory.
+ * <p>
+ * Usage: <code>OcspPrefetchTest parallel|deadline|sequential</code>
+ * </p>
+ */
+public class OcspPrefetchTest {
+
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "";
+		X509Certificate ca1 = StubOcspResponder.certificate("certs/ca1.crt");
+		PrivateKey ca1Key = StubOcspResponder.privateKey("certs/ca1.key");
+		X509Certificate tsa1 = StubOcspResponder.certificate("certs/tsa1.crt");
+		List<CertPath> paths = Arrays.asList(OcspResponseCacheTest.path(StubOcspResponder
+				.certificate("certs/sign1.crt")), OcspResponseCacheTest.path(tsa1));
+		StubOcspResponder stub = new StubOcspResponder(null, ca1, ca1Key, OcspResponseCacheTest.date("2013-05-31"));
+		stub.revoked.add(tsa1.getSerialNumber());
+		TrustContext trust = OcspResponseCacheTest.trustContext(stub);
+		if ("parallel".equals(mode)) {
+			stub.delay = 500;
+			long start = System.nanoTime();
+			trust.prefetchOcspResponses(paths);
+			System.out.println("prefetched: " + stub.fetches + ", at the same time: " + stub.maxConcurrent);
+			System.out.println("waited for one request: " + (millisSince(start) < 1000));
+			System.out.println(validate(trust, paths));
+			System.out.println("requests: " + stub.fetches);
+		} else if ("deadline".equals(mode)) {
+			stub.delay = 2000;
+			stub.setTimeout(200);
+			long start = System.nanoTime();
+			trust.prefetchOcspResponses(paths);
+			long millis = millisSince(start);
+			System.out.println("returned at the deadline: " + (millis >= 400 && millis < 1500));
+			// the validations wait for the same requests
+			System.out.println(validate(trust, paths));
+			System.out.println("requests: " + stub.fetches);
+		} else if ("sequential".equals(mode)) {
+			trust.prefetchOcspResponses(paths);
+			String prefetched = validate(trust, paths);
+			StubOcspResponder sequential = new StubOcspResponder(null, ca1, ca1Key,
+					OcspResponseCacheTest.date("2013-05-31"));
+			sequential.revoked.add(tsa1.getSerialNumber());
+			String validated = validate(OcspResponseCacheTest.trustContext(sequential), paths);
+			System.out.println(validated);
+			System.out.println("same as prefetched: " + validated.equals(prefetched));
+			System.out.println("requests: " + sequential.fetches + ", at the same time: "
+					+ sequential.maxConcurrent);
+		} else {
+			System.err.println("Usage: OcspPrefetchTest parallel|deadline|sequential");
+			System.exit(255);
+		}
+	}
+
+	private static String validate(TrustContext trust, List<CertPath> paths) {
+		return "sign1: " + OcspResponseCacheTest.validate(trust, paths.get(0)) + ", tsa1: "
+				+ OcspResponseCacheTest.validate(trust, paths.get(1));
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CRL;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Checks {@link OcspResponseCache} against a {@link StubOcspResponder} of the
+ * test CA 1, run from the <code>test</code> directory.
+ * <p>
+ * Usage: <code>OcspResponseCacheTest cached|failure|bad-signature|validate</code>
+ * </p>
+ */
+public class OcspResponseCacheTest {
+
+	static final URI RESPONDER = URI.create("http://127.0.0.1:9/ocsp");
+
+	static Date date(String date) throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.parse(date);
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static String get(OcspResponseCache cache, X509Certificate cert, X509Certificate issuer) {
+		try {
+			cache.get(cert, issuer, RESPONDER);
+			return "ok";
+		} catch (IOException e) {
+			return "failed (" + e.getMessage() + ")";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "";
+		X509Certificate ca1 = StubOcspResponder.certificate("certs/ca1.crt");
+		X509Certificate sign1 = StubOcspResponder.certificate("certs/sign1.crt");
+		PrivateKey ca1Key = StubOcspResponder.privateKey("certs/ca1.key");
+		Date thisUpdate = date("2013-05-31");
+		File directory = Files.createTempDirectory("ocsp").toFile();
+		try {
+			if ("cached".equals(mode)) {
+				StubOcspResponder stub = new StubOcspResponder(directory, ca1, ca1Key, thisUpdate);
+				System.out.println("first: " + get(stub, sign1, ca1));
+				System.out.println("second: " + get(stub, sign1, ca1));
+				System.out.println("requests: " + stub.fetches);
+				// a new process with the same directory
+				StubOcspResponder restarted = new StubOcspResponder(directory, ca1, ca1Key, thisUpdate);
+				System.out.println("after restart: " + get(restarted, sign1, ca1));
+				System.out.println("requests: " + restarted.fetches);
+			} else if ("failure".equals(mode)) {
+				StubOcspResponder stub = new StubOcspResponder(directory, ca1, ca1Key, thisUpdate);
+				stub.down = true;
+				System.out.println("first: " + get(stub, sign1, ca1));
+				System.out.println("second: " + get(stub, sign1, ca1));
+				System.out.println("requests: " + stub.fetches);
+			} else if ("bad-signature".equals(mode)) {
+				// signed by the key of another CA on behalf of the test CA 1
+				StubOcspResponder stub = new StubOcspResponder(directory, ca1,
+						StubOcspResponder.privateKey("certs/ca2.key"), thisUpdate);
+				System.out.println("first: " + get(stub, sign1, ca1));
+				System.out.println("stored: " + directory.list().length);
+				StubOcspResponder restarted = new StubOcspResponder(directory, ca1, ca1Key, thisUpdate);
+				System.out.println("after restart: " + get(restarted, sign1, ca1));
+				System.out.println("requests: " + restarted.fetches);
+			} else if ("validate".equals(mode)) {
+				validate(ca1, sign1, ca1Key, thisUpdate);
+			} else {
+				System.err.println("Usage: OcspResponseCacheTest cached|failure|bad-signature|validate");
+				System.exit(255);
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	static CertPath path(X509Certificate cert) throws Exception {
+		return CertificateFactory.getInstance("X.509").generateCertPath(Collections.singletonList(cert));
+	}
+
+	static TrustContext trustContext(OcspResponseCache cache) throws Exception {
+		KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+		InputStream in = new FileInputStream("certs/trusted1.jks");
+		try {
+			keystore.load(in, null);
+		} finally {
+			in.close();
+		}
+		return new TrustContext(keystore, Collections.<CRL> emptyList(), true, RESPONDER.toString(),
+				date("2013-06-01"), cache);
+	}
+
+	static String validate(TrustContext trust, CertPath path) {
+		try {
+			trust.validate(path, (Date) null);
+			return "valid";
+		} catch (CertPathValidatorException e) {
+			return String.valueOf(e.getReason());
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	/**
+	 * Validates paths with the responses of the cache, and with the responder
+	 * down: the validation fails at once, without the JDK checker sending the
+	 * request again.
+	 */
+	private static void validate(X509Certificate ca1, X509Certificate sign1, PrivateKey ca1Key, Date thisUpdate)
+			throws Exception {
+		X509Certificate tsa1 = StubOcspResponder.certificate("certs/tsa1.crt");
+		StubOcspResponder stub = new StubOcspResponder(null, ca1, ca1Key, thisUpdate);
+		stub.revoked.add(tsa1.getSerialNumber());
+		TrustContext trust = trustContext(stub);
+		System.out.println("sign1: " + validate(trust, path(sign1)));
+		System.out.println("tsa1: " + validate(trust, path(tsa1)));
+
+		StubOcspResponder down = new StubOcspResponder(null, ca1, ca1Key, thisUpdate);
+		down.down = true;
+		down.delay = 500;
+		trust = trustContext(down);
+		long start = System.nanoTime();
+		System.out.println("responder down: " + validate(trust, path(sign1)));
+		System.out.println("again: " + validate(trust, path(sign1)));
+		System.out.println("requests: " + down.fetches);
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println("waited for one request: " + (millis < 1000));
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OCSP response cache answering the requests itself, as a responder of a test
+ * CA would, instead of sending them. Responses are signed by the given key on
+ * behalf of the issuer and valid from the given time until a day from now.
+ */
+class StubOcspResponder extends OcspResponseCache {
+
+	private static final byte[] ID_PKIX_OCSP_BASIC = { 0x06, 0x09, 0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x01,
+			0x01 };
+
+	private static final byte[] SHA256_WITH_RSA = { 0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86,
+			(byte) 0xf7, 0x0d, 0x01, 0x01, 0x0b, 0x05, 0x00 };
+
+	static X509Certificate certificate(String file) throws IOException, GeneralSecurityException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] der(int tag, byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 4);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length < 0x100) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		}
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return start of the contents and end of the element at the position
+	 */
+	private static int[] element(byte[] data, int pos) {
+		int start = pos + 1;
+		int length = data[start++] & 0xff;
+		if (length > 0x7f) {
+			int bytes = length & 0x7f;
+			length = 0;
+			for (int i = 0; i < bytes; i++) {
+				length = (length << 8) | (data[start++] & 0xff);
+			}
+		}
+		return new int[] { start, start + length };
+	}
+
+	/**
+	 * @return PKCS#8 private key of a PEM file
+	 */
+	static PrivateKey privateKey(String file) throws IOException, GeneralSecurityException {
+		String pem = new String(Files.readAllBytes(new File(file).toPath()), "US-ASCII");
+		String base64 = pem.replaceAll("-----[A-Z ]*-----", "");
+		return KeyFactory.getInstance("RSA").generatePrivate(
+				new PKCS8EncodedKeySpec(Base64.getMimeDecoder().decode(base64)));
+	}
+
+	private static byte[] time(long millis) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return der(0x18, format.format(new Date(millis)).getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Requests the responder is asked, not the ones answered by the cache.
+	 */
+	final AtomicInteger fetches = new AtomicInteger();
+
+	/**
+	 * Time each request takes, in milliseconds.
+	 */
+	volatile long delay;
+
+	/**
+	 * Fails the requests like an unreachable responder.
+	 */
+	volatile boolean down;
+
+	private final X509Certificate issuer;
+
+	private final PrivateKey key;
+
+	/**
+	 * Most requests answered at the same time.
+	 */
+	final AtomicInteger maxConcurrent = new AtomicInteger();
+
+	/**
+	 * Serial numbers of the revoked certificates.
+	 */
+	final Set<BigInteger> revoked = Collections.synchronizedSet(new HashSet<BigInteger>());
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	private final long thisUpdate;
+
+	StubOcspResponder(File directory, X509Certificate issuer, PrivateKey key, Date thisUpdate) {
+		super(directory, 100);
+		this.issuer = issuer;
+		this.key = key;
+		this.thisUpdate = thisUpdate.getTime();
+	}
+
+	@Override
+	protected byte[] fetch(URI responder, byte[] request) throws IOException {
+		fetches.incrementAndGet();
+		int concurrent = running.incrementAndGet();
+		try {
+			int max;
+			while (concurrent > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, concurrent))
+				;
+			if (delay > 0)
+				Thread.sleep(delay);
+			if (down)
+				throw new IOException("Connection refused");
+			return response(request);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+
+	private byte[] response(byte[] request) throws IOException, GeneralSecurityException {
+		// OCSPRequest, TBSRequest, requestList, Request: the single CertID
+		int pos = 0;
+		for (int i = 0; i < 4; i++) {
+			pos = element(request, pos)[0];
+		}
+		int[] certIdElement = element(request, pos);
+		byte[] certId = Arrays.copyOfRange(request, pos, certIdElement[1]);
+		// hash algorithm, issuer name hash, issuer key hash, serial number
+		pos = certIdElement[0];
+		for (int i = 0; i < 3; i++) {
+			pos = element(request, pos)[1];
+		}
+		int[] serial = element(request, pos);
+		BigInteger serialNumber = new BigInteger(Arrays.copyOfRange(request, serial[0], serial[1]));
+
+		long now = System.currentTimeMillis();
+		byte[] status = revoked.contains(serialNumber) ? der(0xa1, time(thisUpdate)) : new byte[] { (byte) 0x80,
+				0x00 };
+		byte[] single = der(0x30, certId, status, time(thisUpdate), der(0xa0, time(now + 24 * 3600 * 1000L)));
+		byte[] tbs = der(0x30, der(0xa1, issuer.getSubjectX500Principal().getEncoded()), time(thisUpdate), der(
+				0x30, single));
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(key);
+		signature.update(tbs);
+		byte[] signatureBits = der(0x03, new byte[] { 0 }, signature.sign());
+		byte[] basic = der(0x30, tbs, SHA256_WITH_RSA, signatureBits);
+		return der(0x30, new byte[] { 0x0a, 0x01, 0x00 }, der(0xa0, der(0x30, ID_PKIX_OCSP_BASIC, der(0x04, basic))));
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the results of {@link JarSignatureValidator#verify(File)} for the
+ * test jars, run from the <code>test</code> directory. Prints the status and
+ * the problems of each jar, and the number of bytes the verifications wrote to
+ * stdout and stderr.
+ */
+public class VerificationResultTest {
+
+	public static void main(String[] args) throws Exception {
+		JarSignatureValidator validator = new JarSignatureValidator();
+		validator.setTrustedKeystore("certs/trusted1.jks");
+		validator.setVerificationDate(OcspResponseCacheTest.date("2013-06-01"));
+		JarSignatureValidator noKeystore = new JarSignatureValidator();
+		noKeystore.setTrustedKeystore("certs/no-such.jks");
+
+		List<VerificationResult> results = new ArrayList<VerificationResult>();
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true));
+		System.setErr(new PrintStream(output, true));
+		try {
+			for (String jar : new String[] { "sign1.jar", "sign2.jar", "input.jar", "bad_sign.jar",
+					"unsigned_file.jar", "tampered.jar", "tampered_unsigned.jar", "no-such.jar" }) {
+				results.add(validator.verify(new File("jars/" + jar)));
+			}
+			results.add(noKeystore.verify(new File("jars/sign1.jar")));
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+
+		for (VerificationResult result : results) {
+			System.out.println(result.getJar() + ": " + result.getStatus() + ", exit code "
+					+ result.getStatus().getExitCode());
+			for (VerificationResult.Problem problem : result.getProblems()) {
+				System.out.println("  " + problem);
+			}
+		}
+		System.out.println("output: " + output.size());
+	}
+
+}
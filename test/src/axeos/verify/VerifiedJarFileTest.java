@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import axeos.verify.exceptions.ValidatorException;
+
+/**
+ * Checks the entries of a {@link VerifiedJarFile} of the test jars, run from
+ * the <code>test</code> directory.
+ * <p>
+ * Usage: <code>VerifiedJarFileTest tampered|unsigned|background</code>
+ * </p>
+ */
+public class VerifiedJarFileTest {
+
+	private static String background(VerifiedJarFile jar) throws Exception {
+		Future<Void> future = jar.verifyInBackground();
+		if (future != jar.verifyInBackground())
+			return "another future";
+		try {
+			future.get(30, TimeUnit.SECONDS);
+			return "valid";
+		} catch (ExecutionException e) {
+			return e.getCause().getClass().getSimpleName();
+		}
+	}
+
+	private static ValidatorException failure(VerifiedJarFile jar, String name) throws Exception {
+		try {
+			jar.getInputStream(jar.getJarEntry(name)).close();
+			return null;
+		} catch (ValidatorException e) {
+			return e;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "";
+		JarSignatureValidator validator = new JarSignatureValidator();
+		validator.setTrustedKeystore("certs/trusted1.jks");
+		validator.setVerificationDate(OcspResponseCacheTest.date("2013-06-01"));
+		if ("tampered".equals(mode)) {
+			VerifiedJarFile jar = new VerifiedJarFile(new File("jars/tampered.jar"), validator);
+			try {
+				System.out.println("one.txt: " + open(jar, "one.txt"));
+				System.out.println("two.txt: " + open(jar, "two.txt"));
+				System.out.println("two.txt failure cached: " + (failure(jar, "two.txt") == failure(jar, "two.txt")));
+				System.out.println("dir/three.txt: " + open(jar, "dir/three.txt"));
+			} finally {
+				jar.close();
+			}
+		} else if ("unsigned".equals(mode)) {
+			VerifiedJarFile jar = new VerifiedJarFile(new File("jars/unsigned_file.jar"), validator);
+			try {
+				System.out.println("one.txt: " + open(jar, "one.txt"));
+				System.out.println("four.txt: " + open(jar, "four.txt"));
+			} finally {
+				jar.close();
+			}
+			jar = new VerifiedJarFile(new File("jars/input.jar"), validator);
+			try {
+				System.out.println("not signed one.txt: " + open(jar, "one.txt"));
+			} finally {
+				jar.close();
+			}
+		} else if ("background".equals(mode)) {
+			VerifiedJarFile jar = new VerifiedJarFile(new File("jars/sign1.jar"), validator);
+			try {
+				System.out.println("one.txt: " + open(jar, "one.txt"));
+				System.out.println("background: " + background(jar));
+				System.out.println("two.txt: " + open(jar, "two.txt"));
+			} finally {
+				jar.close();
+			}
+			jar = new VerifiedJarFile(new File("jars/tampered.jar"), validator);
+			try {
+				System.out.println("tampered background: " + background(jar));
+				System.out.println("tampered one.txt: " + open(jar, "one.txt"));
+			} finally {
+				jar.close();
+			}
+		} else {
+			System.err.println("Usage: VerifiedJarFileTest tampered|unsigned|background");
+			System.exit(255);
+		}
+	}
+
+	/**
+	 * @return <code>checked</code> if the entry was read and checked when
+	 *         opened, <code>not checked</code> if only its digest is checked
+	 *         by the stream, or name of the exception thrown
+	 */
+	private static String open(VerifiedJarFile jar, String name) throws Exception {
+		InputStream in;
+		try {
+			in = jar.getInputStream(jar.getJarEntry(name));
+		} catch (ValidatorException e) {
+			return e.getClass().getSimpleName();
+		}
+		try {
+			// small entries checked when opened are returned from memory
+			return in instanceof ByteArrayInputStream ? "checked" : "not checked";
+		} finally {
+			in.close();
+		}
+	}
+
+}
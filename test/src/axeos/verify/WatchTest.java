@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012, Axeos B.V, and contributors
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Axeos designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package axeos.verify;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a temporary directory with <code>verify_jar -watch</code> and drops
+ * the test jars in it, run from the <code>test</code> directory. Prints the
+ * results written to the log after each step.
+ */
+public class WatchTest {
+
+	/**
+	 * Time the watcher surely takes to notice a change and verify the jar.
+	 */
+	private static final long WAIT_MILLIS = 3 * DirectoryWatcher.SETTLE_MILLIS;
+
+	private static void copy(String jar, File target) throws Exception {
+		// written under another name, so the watcher sees the jar complete
+		File tmp = new File(target.getParentFile(), target.getName() + ".part");
+		Files.copy(new File(jar).toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return results of the log lines, without the jar names
+	 */
+	private static List<String> results(File log) throws Exception {
+		List<String> results = new ArrayList<String>();
+		if (log.exists()) {
+			for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+				results.add(line.substring(line.lastIndexOf(": ") + 2));
+			}
+		}
+		return results;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final File directory = Files.createTempDirectory("watch").toFile();
+		final File log = File.createTempFile("watch", ".log");
+		log.delete();
+		try {
+			FutureTask<Integer> watch = new FutureTask<Integer>(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return new VerifyJar(System.out, System.err, null, null, null).run(new String[] { "-date",
+							"2013-06-01", "-trusted-keystore", "certs/trusted1.jks", "-watch",
+							directory.getPath(), "-watch-log", log.getPath() });
+				}
+			});
+			new Thread(watch).start();
+			File jar = new File(directory, "a.jar");
+
+			copy("jars/sign1.jar", jar);
+			Thread.sleep(WAIT_MILLIS);
+			System.out.println("dropped: " + results(log));
+
+			// modification time changed, content the same
+			jar.setLastModified(jar.lastModified() + 10000);
+			Thread.sleep(WAIT_MILLIS);
+			System.out.println("touched: " + results(log));
+
+			copy("jars/unsigned_file.jar", jar);
+			Thread.sleep(WAIT_MILLIS);
+			System.out.println("replaced: " + results(log));
+
+			// removing the directory stops the watch
+			jar.delete();
+			directory.delete();
+			System.out.println("status: " + watch.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		} finally {
+			new File(directory, "a.jar").delete();
+			directory.delete();
+			log.delete();
+		}
+	}
+
+}